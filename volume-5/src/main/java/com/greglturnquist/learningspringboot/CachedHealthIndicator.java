@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.TaskScheduler;
+
+/**
+ * A {@link HealthIndicator} that does its checking in the background and answers {@link #health()} from the
+ * last result, so a burst of load balancer probes costs nothing and never waits on a slow dependency.
+ *
+ * Checks start once the application is ready and then repeat with a fixed delay. If no check has finished
+ * for three intervals, the check itself is stuck and the indicator reports {@code DOWN}.
+ *
+ * @author Greg Turnquist
+ */
+public abstract class CachedHealthIndicator implements HealthIndicator, ApplicationListener<ApplicationReadyEvent> {
+
+	private final TaskScheduler scheduler;
+	private final long refreshMillis;
+
+	private volatile Health health = Health.unknown().withDetail("reason", "Not checked yet").build();
+	private volatile long lastCompleted;
+
+	protected CachedHealthIndicator(TaskScheduler scheduler, long refreshMillis) {
+		this.scheduler = scheduler;
+		this.refreshMillis = refreshMillis;
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		if (lastCompleted == 0) {
+			lastCompleted = System.currentTimeMillis();
+			scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis);
+		}
+	}
+
+	@Override
+	public Health health() {
+
+		long sinceLastCheck = System.currentTimeMillis() - lastCompleted;
+		if (lastCompleted != 0 && sinceLastCheck > 3 * refreshMillis) {
+			return Health.down()
+				.withDetail("error", "No check has completed for " + sinceLastCheck + "ms")
+				.withDetail("lastResult", health.getStatus())
+				.build();
+		}
+		return health;
+	}
+
+	/**
+	 * Run the check and record whatever it finds on the builder, which starts out {@code UP}. Must bound
+	 * every blocking call with a timeout. Any exception turns into {@code DOWN}.
+	 */
+	protected abstract void check(Health.Builder builder) throws Exception;
+
+	void refresh() {
+
+		Health.Builder builder = Health.up();
+		long start = System.nanoTime();
+		try {
+			check(builder);
+		} catch (Exception e) {
+			builder.down(e);
+		}
+		health = builder
+			.withDetail("checkMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+			.withDetail("checkedAt", System.currentTimeMillis())
+			.build();
+		lastCompleted = System.currentTimeMillis();
+	}
+
+}
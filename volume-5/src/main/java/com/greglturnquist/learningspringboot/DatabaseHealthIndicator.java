@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times a round trip to the database. Takes the place of Spring Boot's own {@code db} check, which runs a
+ * query on the probing thread every time {@code /health} is hit.
+ *
+ * Getting hold of a connection is bounded by the same timeout as the ping. A pool with none to spare can make
+ * {@link DataSource#getConnection()} wait for as long as the pool's own {@code maxWait}, so the borrowing
+ * happens on a thread of its own and the check gives up on it, reporting {@code DOWN}, once the timeout is up.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class DatabaseHealthIndicator extends CachedHealthIndicator implements DisposableBean {
+
+	private final DataSource dataSource;
+	private final int timeoutSeconds;
+	private final long maxPingMillis;
+
+	private final ExecutorService borrower;
+
+	@Autowired
+	public DatabaseHealthIndicator(@Qualifier("healthCheckScheduler") TaskScheduler scheduler,
+								   @Value("${springagram.health.refresh-ms:15000}") long refreshMillis,
+								   DataSource dataSource,
+								   @Value("${springagram.health.database.timeout-seconds:2}") int timeoutSeconds,
+								   @Value("${springagram.health.database.max-ping-ms:500}") long maxPingMillis) {
+		super(scheduler, refreshMillis);
+		this.dataSource = dataSource;
+		this.timeoutSeconds = timeoutSeconds;
+		this.maxPingMillis = maxPingMillis;
+
+		CustomizableThreadFactory threads = new CustomizableThreadFactory("health-db-");
+		threads.setDaemon(true);
+		this.borrower = Executors.newSingleThreadExecutor(threads);
+	}
+
+	@Override
+	protected void check(Health.Builder builder) throws Exception {
+
+		try (Connection connection = borrow()) {
+			builder.withDetail("database", connection.getMetaData().getDatabaseProductName());
+
+			long start = System.nanoTime();
+			boolean valid = connection.isValid(timeoutSeconds);
+			long pingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			builder.withDetail("pingMillis", pingMillis);
+
+			if (!valid) {
+				builder.down().withDetail("error", "No answer within " + timeoutSeconds + "s");
+			} else if (pingMillis > maxPingMillis) {
+				builder.down().withDetail("error", "Ping took more than " + maxPingMillis + "ms");
+			}
+		}
+	}
+
+	/**
+	 * A connection from the pool, or a {@link TimeoutException} if none comes within the timeout. One that
+	 * turns up after that goes straight back to the pool.
+	 */
+	private Connection borrow() throws Exception {
+
+		CompletableFuture<Connection> borrowing = CompletableFuture.supplyAsync(() -> {
+			try {
+				return dataSource.getConnection();
+			} catch (SQLException e) {
+				throw new CompletionException(e);
+			}
+		}, borrower);
+		try {
+			return borrowing.get(timeoutSeconds, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			borrowing.thenAccept(DatabaseHealthIndicator::closeQuietly);
+			throw new TimeoutException("No connection from the pool within " + timeoutSeconds + "s");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// Nothing more we can do with it
+		}
+	}
+
+	@Override
+	public void destroy() {
+		borrower.shutdownNow();
+	}
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Times every {@link Controller} handler method, published as {@code http.<Controller>.<method>} for all
+ * requests and {@code http.<Controller>.<method>.<status>} for each status code it has answered with.
+ *
+ * A handler's timers are created on its first request and reached through an array indexed by status after
+ * that, so timing a request doesn't build any metric names. The last {@value #RECENT} timed requests are
+ * also kept, overwriting the oldest, for {@link #slowestRecent(int, long)}.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class HandlerTimingInterceptor extends HandlerInterceptorAdapter {
+
+	private static final String START = HandlerTimingInterceptor.class.getName() + ".START";
+	private static final int RECENT = 256;
+
+	private final MetricsRegistry metricsRegistry;
+	private final ConcurrentMap<Method, HandlerTimers> timers = new ConcurrentHashMap<>();
+	private final RecentRequest[] recent = new RecentRequest[RECENT];
+	private final AtomicLong recentCount = new AtomicLong();
+
+	@Autowired
+	public HandlerTimingInterceptor(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+		for (int i = 0; i < recent.length; i++) {
+			recent[i] = new RecentRequest();
+		}
+	}
+
+	/**
+	 * @param limit how many requests to return, slowest first
+	 * @param withinMillis only consider requests that finished this recently
+	 */
+	public List<RecentRequest> slowestRecent(int limit, long withinMillis) {
+
+		long since = System.currentTimeMillis() - withinMillis;
+		List<RecentRequest> slowest = new ArrayList<>();
+		for (RecentRequest slot : recent) {
+			RecentRequest copy = slot.copy();
+			if (copy.getFinishedAt() >= since) {
+				slowest.add(copy);
+			}
+		}
+		slowest.sort(Comparator.comparingLong(RecentRequest::getMicros).reversed());
+		return slowest.subList(0, Math.min(limit, slowest.size()));
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+
+		if (isControllerMethod(handler)) {
+			request.setAttribute(START, System.nanoTime());
+		}
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+								Exception ex) {
+
+		Long start = (Long) request.getAttribute(START);
+		if (start == null) {
+			return;
+		}
+		request.removeAttribute(START);
+
+		HandlerMethod handlerMethod = (HandlerMethod) handler;
+		HandlerTimers handlerTimers = timers.get(handlerMethod.getMethod());
+		if (handlerTimers == null) {
+			handlerTimers = timers.computeIfAbsent(handlerMethod.getMethod(),
+				method -> new HandlerTimers("http." + handlerMethod.getBeanType().getSimpleName() + "." + method.getName()));
+		}
+
+		// An exception that escaped the handler becomes an error page, whatever the status says right now
+		int status = (ex != null && response.getStatus() < 400) ? 500 : response.getStatus();
+		long micros = handlerTimers.record(start, status);
+
+		recent[(int) (recentCount.getAndIncrement() % RECENT)]
+			.set(handlerTimers.name, request.getMethod(), request.getRequestURI(), status, micros);
+	}
+
+	private static boolean isControllerMethod(Object handler) {
+		return handler instanceof HandlerMethod
+			&& AnnotatedElementUtils.isAnnotated(((HandlerMethod) handler).getBeanType(), Controller.class.getName());
+	}
+
+	private final class HandlerTimers {
+
+		private final String name;
+		private final MetricsRegistry.Timer all;
+		private final AtomicReferenceArray<MetricsRegistry.Timer> byStatus = new AtomicReferenceArray<>(600);
+
+		HandlerTimers(String name) {
+			this.name = name;
+			this.all = metricsRegistry.timer(name);
+		}
+
+		long record(long start, int status) {
+
+			long micros = (System.nanoTime() - start) / 1000;
+			all.record(micros);
+
+			if (status < 100 || status >= byStatus.length()) {
+				return micros;
+			}
+			MetricsRegistry.Timer timer = byStatus.get(status);
+			if (timer == null) {
+				timer = metricsRegistry.timer(name + "." + status);
+				byStatus.compareAndSet(status, null, timer);
+			}
+			timer.record(micros);
+			return micros;
+		}
+	}
+
+	/**
+	 * One slot of the ring of recent requests. Slots are reused, so callers only ever see copies.
+	 */
+	public static final class RecentRequest {
+
+		private String handler;
+		private String method;
+		private String uri;
+		private int status;
+		private long micros;
+		private long finishedAt;
+
+		synchronized void set(String handler, String method, String uri, int status, long micros) {
+			this.handler = handler;
+			this.method = method;
+			this.uri = uri;
+			this.status = status;
+			this.micros = micros;
+			this.finishedAt = System.currentTimeMillis();
+		}
+
+		synchronized RecentRequest copy() {
+			RecentRequest copy = new RecentRequest();
+			copy.handler = handler;
+			copy.method = method;
+			copy.uri = uri;
+			copy.status = status;
+			copy.micros = micros;
+			copy.finishedAt = finishedAt;
+			return copy;
+		}
+
+		public String getHandler() {
+			return handler;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public long getMicros() {
+			return micros;
+		}
+
+		public long getFinishedAt() {
+			return finishedAt;
+		}
+	}
+
+}
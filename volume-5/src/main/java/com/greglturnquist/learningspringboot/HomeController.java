@@ -15,7 +15,9 @@
  */
 package com.greglturnquist.learningspringboot;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.InputStreamResource;
@@ -44,11 +46,13 @@ public class HomeController {
 	private static final String FILENAME = "{filename:.+}";
 
 	private final ImageService imageService;
+	private final MetricsRegistry.Counter bytesServed;
 
 	@Autowired
-	public HomeController(ImageService imageService) {
+	public HomeController(ImageService imageService, MetricsRegistry metricsRegistry) {
 
 		this.imageService = imageService;
+		this.bytesServed = metricsRegistry.counter("files.served.totalBytes");
 	}
 
 	@RequestMapping(value = "/")
@@ -73,7 +77,7 @@ public class HomeController {
 			return ResponseEntity.ok()
 					.contentLength(file.contentLength())
 					.contentType(MediaType.IMAGE_JPEG)
-					.body(new InputStreamResource(file.getInputStream()));
+					.body(new InputStreamResource(new CountingInputStream(file.getInputStream(), bytesServed)));
 		} catch (IOException e) {
 			return ResponseEntity.badRequest()
 					.body("Couldn't find " + filename + " => " + e.getMessage());
@@ -105,4 +109,36 @@ public class HomeController {
 		return "redirect:/";
 	}
 
+	/**
+	 * Counts bytes as they're read out to the response, so a client that hangs up partway through is only
+	 * counted for what it was sent.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private final MetricsRegistry.Counter counter;
+
+		CountingInputStream(InputStream in, MetricsRegistry.Counter counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				counter.increment();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				counter.add(read);
+			}
+			return read;
+		}
+	}
+
 }
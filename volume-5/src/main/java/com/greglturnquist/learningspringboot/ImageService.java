@@ -23,11 +23,6 @@ import java.nio.file.Paths;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
-import org.springframework.boot.actuate.metrics.CounterService;
-import org.springframework.boot.actuate.metrics.GaugeService;
-import org.springframework.boot.actuate.metrics.Metric;
-import org.springframework.boot.actuate.metrics.repository.InMemoryMetricRepository;
-import org.springframework.boot.actuate.metrics.writer.Delta;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
@@ -45,31 +40,31 @@ import org.springframework.web.multipart.MultipartFile;
 @Service
 public class ImageService {
 
-	private static String UPLOAD_ROOT = "upload-dir";
+	static final String UPLOAD_ROOT = "upload-dir";
 
 	private final ImageRepository repository;
 	private final ResourceLoader resourceLoader;
-	private final CounterService counterService;
-	private final GaugeService gaugeService;
-	private final InMemoryMetricRepository inMemoryMetricRepository;
 	private final SimpMessagingTemplate messagingTemplate;
 
+	private final MetricsRegistry.Counter filesUploaded;
+	private final MetricsRegistry.Gauge lastBytes;
+	private final MetricsRegistry.Counter totalBytes;
+	private final MetricsRegistry.Histogram uploadSizes;
+
 	@Autowired
 	public ImageService(ImageRepository repository, ResourceLoader resourceLoader,
-						CounterService counterService, GaugeService gaugeService,
-						InMemoryMetricRepository inMemoryMetricRepository,
+						MetricsRegistry metricsRegistry,
 						SimpMessagingTemplate messagingTemplate) {
 
 		this.repository = repository;
 		this.resourceLoader = resourceLoader;
-		this.counterService = counterService;
-		this.gaugeService = gaugeService;
-		this.inMemoryMetricRepository = inMemoryMetricRepository;
 		this.messagingTemplate = messagingTemplate;
 
-		this.counterService.reset("files.uploaded");
-		this.gaugeService.submit("files.uploaded.lastBytes", 0);
-		this.inMemoryMetricRepository.set(new Metric<Number>("files.uploaded.totalBytes", 0));
+		// Same names CounterService and GaugeService published these under
+		this.filesUploaded = metricsRegistry.counter("counter.files.uploaded");
+		this.lastBytes = metricsRegistry.gauge("gauge.files.uploaded.lastBytes");
+		this.totalBytes = metricsRegistry.counter("files.uploaded.totalBytes");
+		this.uploadSizes = metricsRegistry.histogram("files.uploaded.bytes", 1024L * 1024 * 1024);
 	}
 
 	public Page<Image> findPage(Pageable pageable) {
@@ -85,9 +80,10 @@ public class ImageService {
 		if (!file.isEmpty()) {
 			Files.copy(file.getInputStream(), Paths.get(UPLOAD_ROOT, file.getOriginalFilename()));
 			repository.save(new Image(file.getOriginalFilename()));
-			counterService.increment("files.uploaded");
-			gaugeService.submit("files.uploaded.lastBytes", file.getSize());
-			inMemoryMetricRepository.increment(new Delta<Number>("files.uploaded.totalBytes", file.getSize()));
+			filesUploaded.increment();
+			lastBytes.set(file.getSize());
+			totalBytes.add(file.getSize());
+			uploadSizes.record(file.getSize());
 			messagingTemplate.convertAndSend("/topic/newImage", file.getOriginalFilename());
 		}
 	}
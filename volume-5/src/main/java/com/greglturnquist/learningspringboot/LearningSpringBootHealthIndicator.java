@@ -15,32 +15,49 @@
  */
 package com.greglturnquist.learningspringboot;
 
-import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.health.Health;
-import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
 
 /**
  * @author Greg Turnquist
  */
 @Component
-public class LearningSpringBootHealthIndicator implements HealthIndicator {
+public class LearningSpringBootHealthIndicator extends CachedHealthIndicator {
+
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	@Autowired
+	public LearningSpringBootHealthIndicator(@Qualifier("healthCheckScheduler") TaskScheduler scheduler,
+											 @Value("${springagram.health.refresh-ms:15000}") long refreshMillis,
+											 @Value("${springagram.health.remote.connect-timeout-ms:2000}") int connectTimeout,
+											 @Value("${springagram.health.remote.read-timeout-ms:3000}") int readTimeout) {
+		super(scheduler, refreshMillis);
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
 
 	@Override
-	public Health health() {
+	protected void check(Health.Builder builder) throws Exception {
+
+		HttpURLConnection connection =
+				(HttpURLConnection) new URL("http://greglturnquist.com/learning-spring-boot").openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
 		try {
-			int statusCode =
-					((HttpURLConnection)new URL("http://greglturnquist.com/learning-spring-boot").openConnection()).getResponseCode();
-			if (statusCode >= 200 && statusCode < 300) {
-				return Health.up().build();
-			} else {
-				return Health.down().withDetail("HTTP Status Code", statusCode).build();
+			int statusCode = connection.getResponseCode();
+			if (statusCode < 200 || statusCode >= 300) {
+				builder.down().withDetail("HTTP Status Code", statusCode);
 			}
-		} catch (IOException e) {
-			return Health.down(e).build();
+		} finally {
+			connection.disconnect();
 		}
 	}
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.HdrHistogram.ConcurrentHistogram;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Counters, gauges and histograms that any number of threads can update at once without locks or
+ * allocation, all published under {@code /metrics}.
+ *
+ * Look a metric up once (typically in a constructor) and keep the handle. Recording against a handle never
+ * touches a map: counters are {@link LongAdder}s, and histograms are HdrHistograms, which record into
+ * preallocated buckets with a couple of atomic increments.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class MetricsRegistry implements PublicMetrics {
+
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	public Counter counter(String name) {
+		return counters.computeIfAbsent(name, n -> new Counter());
+	}
+
+	public Gauge gauge(String name) {
+		return gauges.computeIfAbsent(name, n -> new Gauge());
+	}
+
+	/**
+	 * @param highestTrackableValue larger values are recorded as this
+	 * @throws IllegalArgumentException if {@code name} is already a {@link #timer(String)}
+	 */
+	public Histogram histogram(String name, long highestTrackableValue) {
+		Histogram histogram = histograms.computeIfAbsent(name, n -> new Histogram(highestTrackableValue, 1));
+		if (histogram instanceof Timer) {
+			throw new IllegalArgumentException("Metric '" + name + "' is already registered as a timer");
+		}
+		return histogram;
+	}
+
+	/**
+	 * A histogram of durations up to an hour, published in milliseconds with a requests-per-second rate.
+	 *
+	 * @throws IllegalArgumentException if {@code name} is already a plain {@link #histogram(String, long)}
+	 */
+	public Timer timer(String name) {
+		Histogram histogram = histograms.computeIfAbsent(name, n -> new Timer());
+		if (!(histogram instanceof Timer)) {
+			throw new IllegalArgumentException("Metric '" + name + "' is already registered as a histogram");
+		}
+		return (Timer) histogram;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+			metrics.add(new Metric<Number>(counter.getKey(), counter.getValue().get()));
+		}
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			metrics.add(new Metric<Number>(gauge.getKey(), gauge.getValue().get()));
+		}
+		for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+			histogram.getValue().publish(histogram.getKey(), metrics);
+		}
+		return metrics;
+	}
+
+	public static final class Counter {
+
+		private final LongAdder count = new LongAdder();
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long amount) {
+			count.add(amount);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	public static final class Gauge {
+
+		private volatile long value;
+
+		public void set(long value) {
+			this.value = value;
+		}
+
+		public long get() {
+			return value;
+		}
+	}
+
+	public static class Histogram {
+
+		private final ConcurrentHistogram histogram;
+		private final long highestTrackableValue;
+		private final double publishedUnit;
+
+		/**
+		 * @param publishedUnit recorded values are divided by this when published
+		 */
+		Histogram(long highestTrackableValue, double publishedUnit) {
+			// Two significant digits: percentiles are within 1%, and the buckets stay a few dozen KB
+			this.histogram = new ConcurrentHistogram(highestTrackableValue, 2);
+			this.highestTrackableValue = highestTrackableValue;
+			this.publishedUnit = publishedUnit;
+		}
+
+		public void record(long value) {
+			histogram.recordValue(Math.max(0, Math.min(value, highestTrackableValue)));
+		}
+
+		public long getCount() {
+			return histogram.getTotalCount();
+		}
+
+		/**
+		 * In published units.
+		 */
+		public double getValueAtPercentile(double percentile) {
+			return histogram.getValueAtPercentile(percentile) / publishedUnit;
+		}
+
+		void publish(String name, Collection<Metric<?>> metrics) {
+
+			org.HdrHistogram.Histogram snapshot = histogram.copy();
+			metrics.add(new Metric<Number>(name + ".count", snapshot.getTotalCount()));
+			if (snapshot.getTotalCount() == 0) {
+				return;
+			}
+			metrics.add(new Metric<Number>(name + ".mean", snapshot.getMean() / publishedUnit));
+			metrics.add(new Metric<Number>(name + ".max", snapshot.getMaxValue() / publishedUnit));
+			metrics.add(new Metric<Number>(name + ".p50", snapshot.getValueAtPercentile(50.0) / publishedUnit));
+			metrics.add(new Metric<Number>(name + ".p99", snapshot.getValueAtPercentile(99.0) / publishedUnit));
+			metrics.add(new Metric<Number>(name + ".p999", snapshot.getValueAtPercentile(99.9) / publishedUnit));
+		}
+	}
+
+	/**
+	 * Events per second, as an exponentially weighted moving average over the last minute (the same decay
+	 * as the Unix one-minute load average).
+	 *
+	 * There is no background thread: whichever caller first notices that a tick interval has passed folds
+	 * the events counted since then into the average, and every other caller only bumps a {@link LongAdder}.
+	 */
+	public static final class Meter {
+
+		private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+		private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+		private final LongSupplier clock;
+		private final LongAdder uncounted = new LongAdder();
+		private final AtomicLong lastTick;
+		private volatile double rate = -1;
+
+		public Meter() {
+			this(System::nanoTime);
+		}
+
+		/**
+		 * @param clock nanoseconds, standing in for {@link System#nanoTime()}
+		 */
+		Meter(LongSupplier clock) {
+			this.clock = clock;
+			this.lastTick = new AtomicLong(clock.getAsLong());
+		}
+
+		public void mark() {
+			tickIfNecessary();
+			uncounted.increment();
+		}
+
+		public double getOneMinuteRate() {
+			tickIfNecessary();
+			return Math.max(rate, 0);
+		}
+
+		private void tickIfNecessary() {
+
+			long last = lastTick.get();
+			long ticks = (clock.getAsLong() - last) / TICK_NANOS;
+			if (ticks <= 0 || !lastTick.compareAndSet(last, last + ticks * TICK_NANOS)) {
+				return;
+			}
+			double instantRate = uncounted.sumThenReset() / (TICK_NANOS / 1e9);
+			double current = rate < 0 ? instantRate : rate + ALPHA * (instantRate - rate);
+			for (long idle = 1; idle < ticks; idle++) {
+				current -= ALPHA * current;
+			}
+			rate = current;
+		}
+	}
+
+	/**
+	 * Records microseconds, publishes milliseconds, along with the rate at which things are being timed.
+	 */
+	public static class Timer extends Histogram {
+
+		private final Meter meter = new Meter();
+
+		Timer() {
+			super(TimeUnit.HOURS.toMicros(1), 1000.0);
+		}
+
+		/**
+		 * @param startNanos when the timed work started, from {@link System#nanoTime()}
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		@Override
+		public void record(long value) {
+			meter.mark();
+			super.record(value);
+		}
+
+		public double getOneMinuteRate() {
+			return meter.getOneMinuteRate();
+		}
+
+		@Override
+		void publish(String name, Collection<Metric<?>> metrics) {
+			metrics.add(new Metric<Number>(name + ".rate", meter.getOneMinuteRate()));
+			super.publish(name, metrics);
+		}
+	}
+
+}
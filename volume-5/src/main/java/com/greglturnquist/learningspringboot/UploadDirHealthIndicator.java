@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Checks that {@code upload-dir} has room for more images and can take a write in reasonable time. The
+ * write is a small probe file, forced to disk and then removed.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class UploadDirHealthIndicator extends CachedHealthIndicator {
+
+	private static final int PROBE_BYTES = 4096;
+
+	private final Path uploadRoot = Paths.get(ImageService.UPLOAD_ROOT);
+	private final long minFreeBytes;
+	private final long maxWriteMillis;
+
+	@Autowired
+	public UploadDirHealthIndicator(@Qualifier("healthCheckScheduler") TaskScheduler scheduler,
+									@Value("${springagram.health.refresh-ms:15000}") long refreshMillis,
+									@Value("${springagram.health.upload-dir.min-free-bytes:104857600}") long minFreeBytes,
+									@Value("${springagram.health.upload-dir.max-write-ms:1000}") long maxWriteMillis) {
+		super(scheduler, refreshMillis);
+		this.minFreeBytes = minFreeBytes;
+		this.maxWriteMillis = maxWriteMillis;
+	}
+
+	@Override
+	protected void check(Health.Builder builder) throws Exception {
+
+		long free = Files.getFileStore(uploadRoot).getUsableSpace();
+		builder.withDetail("free", free).withDetail("threshold", minFreeBytes);
+		if (free < minFreeBytes) {
+			builder.down().withDetail("error", "Less than " + minFreeBytes + " bytes free");
+			return;
+		}
+
+		long writeMillis = probeWrite();
+		builder.withDetail("writeMillis", writeMillis);
+		if (writeMillis > maxWriteMillis) {
+			builder.down().withDetail("error", "Writing " + PROBE_BYTES + " bytes took more than " + maxWriteMillis + "ms");
+		}
+	}
+
+	private long probeWrite() throws Exception {
+
+		Path probe = uploadRoot.resolve(".health-probe");
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(probe,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer bytes = ByteBuffer.allocate(PROBE_BYTES);
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			channel.force(true);
+		} finally {
+			Files.deleteIfExists(probe);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+}
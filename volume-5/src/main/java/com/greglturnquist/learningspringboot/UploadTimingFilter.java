@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Times uploads end to end, from the first byte of the request until the response is done. This takes in
+ * reading and parsing the multipart body, which happens before {@link HomeController} ever sees the file.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class UploadTimingFilter extends OncePerRequestFilter {
+
+	private final MetricsRegistry.Timer uploadLatency;
+
+	@Autowired
+	public UploadTimingFilter(MetricsRegistry metricsRegistry) {
+		this.uploadLatency = metricsRegistry.timer("files.uploaded.latency");
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+
+		if (!"POST".equals(request.getMethod()) || !"/images".equals(request.getServletPath())) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			uploadLatency.recordSince(start);
+		}
+	}
+
+}
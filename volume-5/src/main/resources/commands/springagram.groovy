@@ -1,23 +1,43 @@
 package commands.crash
 
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+
+import com.greglturnquist.learningspringboot.HandlerTimingInterceptor
+import org.crsh.cli.Argument
 import org.crsh.cli.Command
 import org.crsh.cli.Man
+import org.crsh.cli.Option
 import org.crsh.cli.Usage
 import org.crsh.command.InvocationContext
+import org.crsh.keyboard.KeyHandler
+import org.crsh.keyboard.KeyType
 import org.springframework.beans.factory.ListableBeanFactory
 import org.springframework.boot.actuate.endpoint.MetricsEndpoint
 import org.springframework.boot.actuate.health.HealthIndicator
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
+import org.springframework.web.socket.config.WebSocketMessageBrokerStats
 
 @Usage("Various commands to interact with Spring-a-Gram")
-class springagram {
+class springagram implements KeyHandler {
+
+	private volatile Thread current
+
+	@Override
+	void handle(KeyType type, int[] sequence) {
+		if (type == KeyType.CHARACTER && sequence[0] == 'q') {
+			current?.interrupt()
+		}
+	}
 
 	@Usage("Print out Spring-a-Gram metrics")
-	@Man("Iterate over all metrics")
+	@Man("Iterate over all metrics, or only those starting with a prefix (e.g. http.HomeController for request timings)")
 	@Command
-	void metrics(InvocationContext context) {
+	void metrics(InvocationContext context,
+				 @Usage("only print metrics whose name starts with this") @Argument String prefix) {
 		ListableBeanFactory beanFactory = context.attributes['spring.beanfactory']
 		beanFactory.getBeansOfType(MetricsEndpoint).each { name, metrics ->
-			metrics.invoke().each { k, v ->
+			metrics.invoke().findAll { k, v -> !prefix || k.startsWith(prefix) }.each { k, v ->
 				out.println "${k} is at ${v}"
 			}
 		}
@@ -34,4 +54,98 @@ class springagram {
 		}
 	}
 
+	@Usage("Watch Spring-a-Gram throughput live")
+	@Man("Redraws every few seconds until you press q or Ctrl-C. Rates and bytes are per second over the last refresh; the slowest requests are from the last minute.")
+	@Command
+	void top(InvocationContext context,
+			 @Usage("seconds between refreshes") @Option(names = ["d", "delay"]) Integer delay) {
+		ListableBeanFactory beanFactory = context.attributes['spring.beanfactory']
+		MetricsEndpoint metrics = beanFactory.getBean(MetricsEndpoint)
+		HandlerTimingInterceptor timings = beanFactory.getBean(HandlerTimingInterceptor)
+		WebSocketMessageBrokerStats webSocketStats = beanFactory.getBean(WebSocketMessageBrokerStats)
+		def executors = ['clientInboundChannelExecutor', 'clientOutboundChannelExecutor']
+			.collectEntries { [(it): beanFactory.getBean(it, ThreadPoolTaskExecutor)] }
+		long delayMillis = (delay ?: 2) * 1000
+
+		def rates = [
+			'uploads/s'  : 'http.HomeController.createFile.count',
+			'serves/s'   : 'http.HomeController.oneRawImage.count',
+			'deletes/s'  : 'http.HomeController.deleteFile.count',
+			'bytes in/s' : 'files.uploaded.totalBytes',
+			'bytes out/s': 'files.served.totalBytes'
+		]
+
+		context.takeAlternateBuffer()
+		current = Thread.currentThread()
+		try {
+			def previous = metrics.invoke()
+			long previousAt = System.nanoTime()
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(delayMillis)
+				def latest = metrics.invoke()
+				long now = System.nanoTime()
+				double seconds = (now - previousAt) / 1e9
+
+				out.cls()
+				out.println "springagram top - ${new Date().format('HH:mm:ss')}, every ${delayMillis / 1000}s (q to quit)"
+				out.println ''
+				out.println rates.keySet().collect { String.format('%12s', it) }.join('')
+				out.println rates.values().collect { key ->
+					double perSecond = ((latest[key] ?: 0) - (previous[key] ?: 0)) / seconds
+					String.format('%12s', key.endsWith('Bytes') ? bytes(perSecond) : String.format('%.1f', perSecond))
+				}.join('')
+				out.println ''
+				out.println "WebSocket sessions: ${webSocketStats.webSocketSessionStatsInfo}"
+				out.println ''
+				out.println String.format('%-32s %8s %8s %8s %8s', 'thread pool', 'busy', 'threads', 'max', 'queued')
+				tomcatThreadPools().each { name, pool ->
+					out.println String.format('%-32s %8d %8d %8d %8s', name, pool.currentThreadsBusy,
+						pool.currentThreadCount, pool.maxThreads, '-')
+				}
+				executors.each { name, executor ->
+					out.println String.format('%-32s %8d %8d %8s %8d', name, executor.activeCount, executor.poolSize,
+						executor.maxPoolSize == Integer.MAX_VALUE ? '-' : executor.maxPoolSize,
+						executor.threadPoolExecutor.queue.size())
+				}
+				out.println ''
+				out.println String.format('%10s %6s  %-40s %s', 'ms', 'status', 'request', 'handler')
+				timings.slowestRecent(10, 60000).each { request ->
+					out.println String.format('%10.1f %6d  %-40s %s', request.micros / 1000.0, request.status,
+						"${request.method} ${request.uri}".toString(), request.handler - 'http.')
+				}
+				out.flush()
+
+				previous = latest
+				previousAt = now
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt()
+		}
+		finally {
+			current = null
+			context.releaseAlternateBuffer()
+		}
+	}
+
+	private static Map tomcatThreadPools() {
+		def server = ManagementFactory.platformMBeanServer
+		server.queryNames(new ObjectName('Tomcat:type=ThreadPool,name=*'), null).collectEntries { name ->
+			[(name.getKeyProperty('name').replace('"', '')): [
+				currentThreadsBusy: server.getAttribute(name, 'currentThreadsBusy'),
+				currentThreadCount: server.getAttribute(name, 'currentThreadCount'),
+				maxThreads        : server.getAttribute(name, 'maxThreads')]]
+		}
+	}
+
+	private static String bytes(double perSecond) {
+		def units = ['B', 'KB', 'MB', 'GB']
+		int unit = 0
+		while (perSecond >= 1024 && unit < units.size() - 1) {
+			perSecond /= 1024
+			unit++
+		}
+		String.format('%.1f %s', perSecond, units[unit])
+	}
+
 }
\ No newline at end of file
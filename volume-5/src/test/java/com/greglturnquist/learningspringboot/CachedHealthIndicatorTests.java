@@ -0,0 +1,73 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+public class CachedHealthIndicatorTests {
+
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+	@Test
+	public void unknownUntilTheFirstCheck() {
+		assertThat(indicator(15000).health().getStatus(), is(Status.UNKNOWN));
+	}
+
+	@Test
+	public void answersFromTheLastCheck() {
+
+		CachedHealthIndicator indicator = indicator(15000);
+		indicator.refresh();
+
+		Health health = indicator.health();
+		assertThat(health.getStatus(), is(Status.UP));
+		assertThat(health.getDetails(), hasKey("checkMillis"));
+		assertThat(health.getDetails(), hasKey("checkedAt"));
+	}
+
+	@Test
+	public void failedCheckIsDown() {
+
+		CachedHealthIndicator indicator = indicator(15000);
+		failure.set(new IllegalStateException("Unreachable"));
+		indicator.refresh();
+
+		assertThat(indicator.health().getStatus(), is(Status.DOWN));
+	}
+
+	@Test
+	public void stuckCheckIsDownAfterThreeIntervals() throws Exception {
+
+		CachedHealthIndicator indicator = indicator(10);
+		indicator.refresh();
+		assertThat(indicator.health().getStatus(), is(Status.UP));
+
+		// No refresh since, as if the last one never returned
+		Thread.sleep(50);
+
+		Health health = indicator.health();
+		assertThat(health.getStatus(), is(Status.DOWN));
+		assertThat(health.getDetails().get("lastResult"), is(Status.UP));
+	}
+
+	private CachedHealthIndicator indicator(long refreshMillis) {
+		return new CachedHealthIndicator(new ThreadPoolTaskScheduler(), refreshMillis) {
+
+			@Override
+			protected void check(Health.Builder builder) throws Exception {
+				if (failure.get() != null) {
+					throw failure.get();
+				}
+				builder.withDetail("checked", true);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+public class DatabaseHealthIndicatorTests {
+
+	private final CountDownLatch poolExhausted = new CountDownLatch(1);
+
+	private DatabaseHealthIndicator indicator;
+
+	@After
+	public void tearDown() {
+		poolExhausted.countDown();
+		indicator.destroy();
+	}
+
+	@Test
+	public void reachableDatabaseIsUp() {
+
+		indicator = new DatabaseHealthIndicator(new ThreadPoolTaskScheduler(), 15000,
+				new DriverManagerDataSource("jdbc:h2:mem:health"), 2, 500);
+
+		indicator.refresh();
+
+		Health health = indicator.health();
+		assertThat(health.getStatus(), is(Status.UP));
+		assertThat(health.getDetails().get("database"), is("H2"));
+	}
+
+	@Test
+	public void exhaustedPoolIsDownOnceTheTimeoutIsUp() {
+
+		indicator = new DatabaseHealthIndicator(new ThreadPoolTaskScheduler(), 15000, new AbstractDataSource() {
+
+			@Override
+			public Connection getConnection() throws SQLException {
+				try {
+					// Waits like a pool with nothing to hand out and a long maxWait
+					poolExhausted.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new SQLException("Pool exhausted");
+			}
+
+			@Override
+			public Connection getConnection(String username, String password) throws SQLException {
+				return getConnection();
+			}
+		}, 1, 500);
+
+		long start = System.nanoTime();
+		indicator.refresh();
+
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(lessThan(5000L)));
+		Health health = indicator.health();
+		assertThat(health.getStatus(), is(Status.DOWN));
+		assertThat((String) health.getDetails().get("error"), containsString("No connection from the pool within 1s"));
+	}
+
+}
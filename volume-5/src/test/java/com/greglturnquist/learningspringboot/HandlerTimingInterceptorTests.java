@@ -0,0 +1,110 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.method.HandlerMethod;
+
+public class HandlerTimingInterceptorTests {
+
+	private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+	private final HandlerTimingInterceptor interceptor = new HandlerTimingInterceptor(metricsRegistry);
+
+	@Test
+	public void requestsAreTimedPerHandlerAndPerStatus() throws Exception {
+
+		handle("show", 200, null);
+		handle("show", 200, null);
+		handle("show", 404, null);
+		handle("list", 200, null);
+
+		assertThat(metricsRegistry.timer("http.GalleryController.show").getCount(), is(3L));
+		assertThat(metricsRegistry.timer("http.GalleryController.show.200").getCount(), is(2L));
+		assertThat(metricsRegistry.timer("http.GalleryController.show.404").getCount(), is(1L));
+		assertThat(metricsRegistry.timer("http.GalleryController.list").getCount(), is(1L));
+		assertThat(names(), not(hasItem("http.GalleryController.list.404.count")));
+	}
+
+	@Test
+	public void exceptionThatEscapedTheHandlerCountsAsAServerError() throws Exception {
+
+		handle("show", 200, new IllegalStateException("boom"));
+
+		assertThat(metricsRegistry.timer("http.GalleryController.show.500").getCount(), is(1L));
+		assertThat(names(), not(hasItem("http.GalleryController.show.200.count")));
+	}
+
+	@Test
+	public void handlersOutsideControllersAreNotTimed() throws Exception {
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/main.css");
+		Object handler = new HandlerMethod(new Object(), "toString");
+
+		interceptor.preHandle(request, new MockHttpServletResponse(), handler);
+		interceptor.afterCompletion(request, new MockHttpServletResponse(), handler, null);
+
+		assertThat(names(), is(empty()));
+		assertThat(interceptor.slowestRecent(10, 60000), is(empty()));
+	}
+
+	@Test
+	public void slowestRecentRequestsComeFirst() throws Exception {
+
+		handle("list", 200, null);
+		handle("show", 404, null, 30);
+		handle("show", 200, null, 10);
+
+		List<HandlerTimingInterceptor.RecentRequest> slowest = interceptor.slowestRecent(2, 60000);
+
+		assertThat(slowest.stream().map(HandlerTimingInterceptor.RecentRequest::getStatus).collect(Collectors.toList()),
+				contains(404, 200));
+		assertThat(slowest.get(0).getHandler(), is("http.GalleryController.show"));
+		assertThat(slowest.get(0).getUri(), is("/gallery/show"));
+	}
+
+	private void handle(String method, int status, Exception ex) throws Exception {
+		handle(method, status, ex, 0);
+	}
+
+	private void handle(String method, int status, Exception ex, long sleepMillis) throws Exception {
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/gallery/" + method);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		Object handler = new HandlerMethod(new GalleryController(), method);
+
+		interceptor.preHandle(request, response, handler);
+		Thread.sleep(sleepMillis);
+		response.setStatus(status);
+		interceptor.afterCompletion(request, response, handler, ex);
+	}
+
+	private List<String> names() {
+		return metricsRegistry.metrics().stream().map(Metric::getName).collect(Collectors.toList());
+	}
+
+	@Controller
+	static class GalleryController {
+
+		public String show() {
+			return "show";
+		}
+
+		public String list() {
+			return "list";
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+public class MetricsRegistryTests {
+
+	private static final double ONE_MINUTE_DECAY = Math.exp(-5.0 / 60.0);
+
+	private final MetricsRegistry registry = new MetricsRegistry();
+
+	private final AtomicLong nanos = new AtomicLong();
+
+	@Test
+	public void countersAndGaugesArePublishedUnderTheirNames() {
+
+		registry.counter("uploads").add(3);
+		registry.counter("uploads").increment();
+		registry.gauge("lastBytes").set(42);
+
+		assertThat(published(), hasEntry("uploads", 4L));
+		assertThat(published(), hasEntry("lastBytes", 42L));
+	}
+
+	@Test
+	public void histogramPercentilesAreWithinOnePercent() {
+
+		MetricsRegistry.Histogram sizes = registry.histogram("sizes", 1_000_000);
+		for (long value = 1; value <= 1000; value++) {
+			sizes.record(value);
+		}
+
+		assertThat(sizes.getCount(), is(1000L));
+		assertThat(sizes.getValueAtPercentile(50.0), is(closeTo(500, 5)));
+		assertThat(sizes.getValueAtPercentile(99.0), is(closeTo(990, 10)));
+
+		Map<String, Number> published = published();
+		assertThat(published, hasEntry("sizes.count", 1000L));
+		assertThat(published.get("sizes.mean").doubleValue(), is(closeTo(500.5, 5)));
+		assertThat(published.get("sizes.max").doubleValue(), is(closeTo(1000, 10)));
+		assertThat(published.get("sizes.p50").doubleValue(), is(closeTo(500, 5)));
+		assertThat(published.get("sizes.p99").doubleValue(), is(closeTo(990, 10)));
+		assertThat(published.get("sizes.p999").doubleValue(), is(closeTo(999, 10)));
+	}
+
+	@Test
+	public void valuesOutsideTheTrackableRangeAreClamped() {
+
+		MetricsRegistry.Histogram sizes = registry.histogram("sizes", 1000);
+		sizes.record(-5);
+		sizes.record(1_000_000);
+
+		assertThat(sizes.getValueAtPercentile(0.0), is(0.0));
+		assertThat(sizes.getValueAtPercentile(100.0), is(closeTo(1000, 10)));
+	}
+
+	@Test
+	public void emptyHistogramOnlyPublishesItsCount() {
+
+		registry.histogram("sizes", 1000);
+
+		assertThat(published(), hasEntry("sizes.count", 0L));
+		assertThat(published(), not(hasKey("sizes.p50")));
+	}
+
+	@Test
+	public void timerRecordsMicrosAndPublishesMillisWithARate() {
+
+		MetricsRegistry.Timer timer = registry.timer("latency");
+		timer.record(TimeUnit.MILLISECONDS.toMicros(20));
+
+		assertThat(timer.getValueAtPercentile(50.0), is(closeTo(20, 0.2)));
+		assertThat(published().get("latency.p50").doubleValue(), is(closeTo(20, 0.2)));
+		assertThat(published(), hasKey("latency.rate"));
+	}
+
+	@Test
+	public void sameNameIsTheSameMetric() {
+		assertThat(registry.timer("latency"), is(sameInstance(registry.timer("latency"))));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void timerNameCannotBeReusedForAHistogram() {
+
+		registry.timer("latency");
+		registry.histogram("latency", 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void histogramNameCannotBeReusedForATimer() {
+
+		registry.histogram("sizes", 1000);
+		registry.timer("sizes");
+	}
+
+	@Test
+	public void meterHasNoRateUntilTheFirstTick() {
+
+		MetricsRegistry.Meter meter = new MetricsRegistry.Meter(nanos::get);
+		mark(meter, 50);
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(4));
+
+		assertThat(meter.getOneMinuteRate(), is(0.0));
+	}
+
+	@Test
+	public void firstTickSetsTheRateOutright() {
+
+		MetricsRegistry.Meter meter = new MetricsRegistry.Meter(nanos::get);
+		mark(meter, 50);
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+
+		assertThat(meter.getOneMinuteRate(), is(closeTo(10.0, 1e-9)));
+	}
+
+	@Test
+	public void laterTicksMoveTheRateTowardsTheNewOne() {
+
+		MetricsRegistry.Meter meter = new MetricsRegistry.Meter(nanos::get);
+		mark(meter, 50);
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+		meter.getOneMinuteRate();
+
+		mark(meter, 100);
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+
+		// 10/s so far, 20/s over the last tick
+		assertThat(meter.getOneMinuteRate(), is(closeTo(20.0 - 10.0 * ONE_MINUTE_DECAY, 1e-9)));
+	}
+
+	@Test
+	public void idleTicksDecayTheRateLikeAOneMinuteLoadAverage() {
+
+		MetricsRegistry.Meter meter = new MetricsRegistry.Meter(nanos::get);
+		mark(meter, 50);
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(5));
+		meter.getOneMinuteRate();
+
+		// A minute with nothing going on, noticed only at its end: twelve ticks, down to 1/e
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+		assertThat(meter.getOneMinuteRate(), is(closeTo(10.0 / Math.E, 1e-9)));
+	}
+
+	@Test
+	public void eventsOfSeveralTicksAtOnceCountAsTheFirstThenDecay() {
+
+		MetricsRegistry.Meter meter = new MetricsRegistry.Meter(nanos::get);
+		mark(meter, 50);
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(12));
+
+		assertThat(meter.getOneMinuteRate(), is(closeTo(10.0 * ONE_MINUTE_DECAY, 1e-9)));
+
+		// Ticks stay on the 5s grid: the next one is 3s away, not 5s
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+		assertThat(meter.getOneMinuteRate(), is(closeTo(10.0 * ONE_MINUTE_DECAY, 1e-9)));
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		assertThat(meter.getOneMinuteRate(), is(closeTo(10.0 * ONE_MINUTE_DECAY * ONE_MINUTE_DECAY, 1e-9)));
+	}
+
+	private static void mark(MetricsRegistry.Meter meter, int times) {
+		for (int i = 0; i < times; i++) {
+			meter.mark();
+		}
+	}
+
+	private Map<String, Number> published() {
+		return registry.metrics().stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+	}
+
+}
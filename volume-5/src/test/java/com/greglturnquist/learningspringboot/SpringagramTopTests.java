@@ -0,0 +1,119 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.fileUpload;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.MetricsEndpoint;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.web.context.WebApplicationContext;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+public class SpringagramTopTests {
+
+	private static final Pattern METRIC = Pattern.compile("'[^']+'\\s*:\\s*'([\\w.]+)'");
+
+	@Autowired
+	private WebApplicationContext context;
+
+	@Autowired
+	private MetricsEndpoint metricsEndpoint;
+
+	private MockMvc mvc;
+
+	@Before
+	public void setUp() {
+		mvc = MockMvcBuilders.webAppContextSetup(context).build();
+	}
+
+	@Test
+	public void everyRateTopShowsIsPublished() throws Exception {
+
+		String name = UUID.randomUUID() + ".jpg";
+		mvc.perform(fileUpload("/images").file(new MockMultipartFile("file", name, "image/jpeg", new byte[] { 1, 2, 3 })))
+				.andExpect(status().is3xxRedirection());
+		mvc.perform(get("/images/" + name + "/raw")).andExpect(status().isOk());
+		mvc.perform(delete("/images/" + name)).andExpect(status().is3xxRedirection());
+
+		List<String> keys = rateKeys();
+		assertThat(keys, hasSize(5));
+		Map<String, Object> metrics = metricsEndpoint.invoke();
+		for (String key : keys) {
+			assertThat(metrics, hasKey(key));
+		}
+	}
+
+	@Test
+	public void servedBytesAreCountedAsTheBodyIsWritten() throws Exception {
+
+		String name = UUID.randomUUID() + ".jpg";
+		mvc.perform(fileUpload("/images").file(new MockMultipartFile("file", name, "image/jpeg", new byte[] { 1, 2, 3 })))
+				.andExpect(status().is3xxRedirection());
+		long served = ((Number) metricsEndpoint.invoke().get("files.served.totalBytes")).longValue();
+
+		mvc.perform(get("/images/" + name + "/raw")).andExpect(status().isOk());
+
+		assertThat(((Number) metricsEndpoint.invoke().get("files.served.totalBytes")).longValue(), is(served + 3));
+		mvc.perform(delete("/images/" + name)).andExpect(status().is3xxRedirection());
+	}
+
+	@Test
+	public void byteRatesAreScaledToTheLargestWholeUnit() throws Exception {
+
+		Class<?> command = new GroovyClassLoader().parseClass(script(), "springagram.groovy");
+
+		assertThat(InvokerHelper.invokeStaticMethod(command, "bytes", 512.0), is("512.0 B"));
+		assertThat(InvokerHelper.invokeStaticMethod(command, "bytes", 1536.0), is("1.5 KB"));
+		assertThat(InvokerHelper.invokeStaticMethod(command, "bytes", 3.0 * 1024 * 1024 * 1024 * 1024), is("3072.0 GB"));
+	}
+
+	/**
+	 * The metric names in the {@code rates} table of {@code springagram top}.
+	 */
+	private static List<String> rateKeys() throws Exception {
+
+		String script = script();
+		String rates = script.substring(script.indexOf("def rates = ["), script.indexOf("]", script.indexOf("def rates = [")));
+		List<String> keys = new ArrayList<>();
+		Matcher matcher = METRIC.matcher(rates);
+		while (matcher.find()) {
+			keys.add(matcher.group(1));
+		}
+		return keys;
+	}
+
+	private static String script() throws Exception {
+		return FileCopyUtils.copyToString(new InputStreamReader(
+				new ClassPathResource("commands/springagram.groovy").getInputStream(), StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import javax.servlet.ServletException;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class UploadTimingFilterTests {
+
+	private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+	private final UploadTimingFilter filter = new UploadTimingFilter(metricsRegistry);
+
+	@Test
+	public void uploadsAreTimed() throws Exception {
+
+		filter.doFilter(request("POST", "/images"), new MockHttpServletResponse(), new MockFilterChain());
+
+		assertThat(latency().getCount(), is(1L));
+	}
+
+	@Test
+	public void otherRequestsAreNot() throws Exception {
+
+		filter.doFilter(request("GET", "/images"), new MockHttpServletResponse(), new MockFilterChain());
+		filter.doFilter(request("POST", "/images/batch"), new MockHttpServletResponse(), new MockFilterChain());
+
+		assertThat(latency().getCount(), is(0L));
+	}
+
+	@Test
+	public void failedUploadIsTimedAllTheSame() throws Exception {
+
+		try {
+			filter.doFilter(request("POST", "/images"), new MockHttpServletResponse(), (request, response) -> {
+				throw new ServletException("Upload too large");
+			});
+		} catch (ServletException e) {
+			// expected
+		}
+
+		assertThat(latency().getCount(), is(1L));
+	}
+
+	private MetricsRegistry.Timer latency() {
+		return metricsRegistry.timer("files.uploaded.latency");
+	}
+
+	private static MockHttpServletRequest request(String method, String path) {
+		MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+		request.setServletPath(path);
+		return request;
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Boots the whole application for a benchmark, against a fresh temp directory store and its own in-memory
+ * H2 database, with every benchmark thread acting as {@code greg}.
+ *
+ * @author Greg Turnquist
+ */
+class BenchmarkApplication implements AutoCloseable {
+
+	private final Path root;
+	private final ConfigurableApplicationContext context;
+
+	BenchmarkApplication(String... profiles) throws IOException {
+
+		// JMH runs benchmarks on its own worker threads, so the authentication has to be visible to all of them
+		SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+		System.setProperty("spring.devtools.restart.enabled", "false");
+
+		this.root = Files.createTempDirectory("springagram-jmh");
+		this.context = new SpringApplicationBuilder(LearningSpringBootVideoApplication.class)
+			.properties(
+				"server.port=0",
+				"spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_ON_EXIT=FALSE",
+				"springagram.storage.root=" + root,
+				"spring.jpa.properties.hibernate.generate_statistics=false",
+				"logging.level.root=WARN")
+			.profiles(profiles)
+			.run();
+
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("greg", null));
+	}
+
+	<T> T getBean(Class<T> type) {
+		return context.getBean(type);
+	}
+
+	int getPort() {
+		return ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+	}
+
+	@Override
+	public void close() {
+		context.close();
+		FileSystemUtils.deleteRecursively(root.toFile());
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * Uploading and serving a single image, across file sizes.
+ *
+ * {@code oneRawImage} is called on the controller directly with mock request/response objects, and the body it
+ * hands back is written on the benchmark thread. So it covers the lookup, the {@link ImageCache} and
+ * {@link RawImageWriter}, but not Tomcat or the hand-off to the {@link ImageIoExecutor}. The response body is
+ * counted and thrown away.
+ *
+ * @author Greg Turnquist
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmarks {
+
+	private static final int SERVED_IMAGES = 16;
+
+	@Param({"1024", "65536", "1048576"})
+	int fileSize;
+
+	private BenchmarkApplication application;
+	private ImageService imageService;
+	private HomeController homeController;
+	private MockServletContext servletContext;
+
+	private byte[] content;
+	private final AtomicLong uploads = new AtomicLong();
+	private final AtomicLong served = new AtomicLong();
+
+	@Setup
+	public void setUp() throws IOException {
+
+		application = new BenchmarkApplication();
+		imageService = application.getBean(ImageService.class);
+		homeController = application.getBean(HomeController.class);
+		servletContext = new MockServletContext();
+
+		content = new byte[fileSize];
+		new Random(fileSize).nextBytes(content);
+
+		for (int i = 0; i < SERVED_IMAGES; i++) {
+			imageService.createImage(upload("served-" + i, uploads.incrementAndGet()));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		application.close();
+	}
+
+	@Benchmark
+	public void createImage() throws IOException {
+		long n = uploads.incrementAndGet();
+		imageService.createImage(upload("upload-" + n, n));
+	}
+
+	@Benchmark
+	public Resource findOneImage() throws IOException {
+		return imageService.findOneImage(nextServedImage());
+	}
+
+	@Benchmark
+	public void oneRawImage(Blackhole blackhole) throws IOException {
+
+		DiscardingResponse response = new DiscardingResponse();
+		StreamingResponseBody body =
+			homeController.oneRawImage(nextServedImage(), new MockHttpServletRequest(servletContext), response, null);
+		if (body != null) {
+			body.writeTo(response.getOutputStream());
+		}
+		blackhole.consume(response.written);
+	}
+
+	/**
+	 * Every upload gets its own name and, by stamping {@code n} over the first bytes, its own content. Otherwise
+	 * storage would find the blob already there, and the served images would all share one blob.
+	 */
+	private MockMultipartFile upload(String name, long n) {
+
+		byte[] unique = content.clone();
+		for (int i = 0; i < Math.min(8, unique.length); i++) {
+			unique[i] = (byte) (n >>> (8 * i));
+		}
+		return new MockMultipartFile("file", name, "image/jpeg", unique);
+	}
+
+	private String nextServedImage() {
+		return "served-" + (served.incrementAndGet() % SERVED_IMAGES);
+	}
+
+	private static class DiscardingResponse extends MockHttpServletResponse {
+
+		long written;
+
+		private final ServletOutputStream out = new ServletOutputStream() {
+
+			@Override
+			public void write(int b) {
+				written++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				written += len;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		};
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return out;
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fetching the gallery {@code pageDepth} pages in, by offset (a plain JPQL query with a first result) and by
+ * keyset ({@code findPage(cursor, size)}), over {@value #IMAGES} images. Both select the same
+ * {@link ImageSummary} rows, one more than a page to tell whether there's a next one, so the only difference
+ * is how the page is found.
+ *
+ * @author Greg Turnquist
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageBenchmarks {
+
+	private static final int IMAGES = 10000;
+	private static final int PAGE_SIZE = 20;
+
+	@Param({"0", "10", "100", "400"})
+	int pageDepth;
+
+	private BenchmarkApplication application;
+	private ImageService imageService;
+	private ImageRepository imageRepository;
+
+	private EntityManager entityManager;
+	private TypedQuery<ImageSummary> offsetQuery;
+	private String cursor;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		application = new BenchmarkApplication();
+		imageService = application.getBean(ImageService.class);
+		imageRepository = application.getBean(ImageRepository.class);
+		User owner = application.getBean(UserRepository.class).findByUsername("greg");
+
+		// The rows are what's being paged through, so they can all share one stored blob
+		String digest = application.getBean(ImageStorage.class).store(new ByteArrayInputStream(new byte[1024]));
+		List<Image> images = new ArrayList<>(IMAGES);
+		for (int i = 0; i < IMAGES; i++) {
+			images.add(new Image("page-" + i, digest, owner));
+		}
+		imageRepository.save(images);
+
+		entityManager = application.getBean(EntityManagerFactory.class).createEntityManager();
+		offsetQuery = entityManager.createQuery(
+				"select new com.greglturnquist.learningspringboot.ImageSummary(i.id, i.name, o.username) " +
+				"from Image i left join i.owner o order by i.id", ImageSummary.class)
+			.setFirstResult(pageDepth * PAGE_SIZE)
+			.setMaxResults(PAGE_SIZE + 1);
+
+		// Follow "next" out to the same depth, as a user clicking through the gallery would
+		CursorPage<ImageSummary> page = imageService.findPage(null, PAGE_SIZE);
+		for (int i = 0; i < pageDepth; i++) {
+			cursor = page.getNext();
+			page = imageService.findPage(cursor, PAGE_SIZE);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		entityManager.close();
+		application.close();
+	}
+
+	@Benchmark
+	public List<ImageSummary> offset() {
+		return offsetQuery.getResultList();
+	}
+
+	@Benchmark
+	public CursorPage<ImageSummary> keyset() {
+		return imageService.findPage(cursor, PAGE_SIZE);
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.mock.web.MockMultipartFile;
+
+/**
+ * The default platform-thread setup against the {@code virtual-threads} profile, under the same blocking
+ * workload: every operation is a burst of {@code clients} concurrent requests over real HTTP, alternating
+ * between the index page (JDBC and templates on Tomcat's threads) and raw images (streamed on the
+ * {@link ImageIoExecutor}), and ends when the last of them has been read.
+ *
+ * The {@code true} runs need Java 21 or later, e.g. {@code ./gradlew jmh -Pjava21Home=... -Pjmh=ThreadingBenchmarks}.
+ * On an older JVM they fail at startup.
+ *
+ * @author Greg Turnquist
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class ThreadingBenchmarks {
+
+	private static final int SERVED_IMAGES = 16;
+
+	/**
+	 * Below {@link RawImageWriter}'s sendfile cut-over, so every image is written out by a worker thread.
+	 */
+	private static final int FILE_SIZE = 32 * 1024;
+
+	@Param({"false", "true"})
+	boolean virtualThreads;
+
+	@Param({"64", "512"})
+	int clients;
+
+	private BenchmarkApplication application;
+	private ExecutorService clientThreads;
+	private List<URL> urls;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		// Keep every client's connection alive between operations, rather than measuring TCP setup
+		System.setProperty("http.maxConnections", String.valueOf(clients));
+
+		application = (virtualThreads ? new BenchmarkApplication("virtual-threads") : new BenchmarkApplication());
+		ImageService imageService = application.getBean(ImageService.class);
+
+		byte[] content = new byte[FILE_SIZE];
+		Random random = new Random(FILE_SIZE);
+		for (int i = 0; i < SERVED_IMAGES; i++) {
+			random.nextBytes(content);
+			imageService.createImage(new MockMultipartFile("file", "served-" + i, "image/jpeg", content));
+		}
+
+		String base = "http://localhost:" + application.getPort();
+		urls = new ArrayList<>(clients);
+		for (int i = 0; i < clients; i++) {
+			urls.add(new URL(i % 2 == 0 ? base + "/" : base + "/images/served-" + (i % SERVED_IMAGES) + "/raw"));
+		}
+		clientThreads = Executors.newFixedThreadPool(clients);
+	}
+
+	@TearDown
+	public void tearDown() {
+		clientThreads.shutdownNow();
+		application.close();
+	}
+
+	@Benchmark
+	public long burst() throws Exception {
+
+		List<Future<Long>> responses = new ArrayList<>(clients);
+		for (URL url : urls) {
+			responses.add(clientThreads.submit(() -> get(url)));
+		}
+		long bytes = 0;
+		for (Future<Long> response : responses) {
+			bytes += response.get();
+		}
+		return bytes;
+	}
+
+	private static long get(URL url) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		if (connection.getResponseCode() != 200) {
+			throw new IllegalStateException("GET " + url + " answered " + connection.getResponseCode());
+		}
+		long bytes = 0;
+		byte[] buffer = new byte[8192];
+		try (InputStream in = connection.getInputStream()) {
+			for (int n; (n = in.read(buffer)) != -1; ) {
+				bytes += n;
+			}
+		}
+		return bytes;
+	}
+
+}
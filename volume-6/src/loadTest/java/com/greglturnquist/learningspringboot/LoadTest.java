@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Starts the application on a random port against a temp {@code upload-dir} and an in-memory database,
+ * then has {@code --clients} users hammer it with a weighted mix of requests, each logged in as {@code greg}.
+ * Prints throughput and latency percentiles per endpoint and writes them as JSON to {@code --results}.
+ *
+ * Options (all optional): {@code --clients=32 --duration=60 --warmup=10 --images=100 --file-size=65536
+ * --mix=index:40,raw:45,upload:10,delete:5 --results=load-test.json}. Durations are in seconds. Requests
+ * started during the warmup are not counted.
+ *
+ * Every client sends its next request as soon as the last one answers. When the server slows down, the
+ * clients slow down with it, so latencies near saturation read lower than users would actually see.
+ *
+ * @author Greg Turnquist
+ */
+public class LoadTest {
+
+	enum Endpoint {
+
+		INDEX("GET /", 200),
+		RAW("GET /images/{name}/raw", 200),
+		UPLOAD("POST /images", 302),
+		DELETE("DELETE /images/{name}", 302);
+
+		final String label;
+		final int expectedStatus;
+
+		Endpoint(String label, int expectedStatus) {
+			this.label = label;
+			this.expectedStatus = expectedStatus;
+		}
+	}
+
+	private final String baseUrl;
+	private final int clients;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final int fileSize;
+	private final Endpoint[] mix;
+
+	private final Gallery gallery = new Gallery();
+	private final AtomicLong uploads = new AtomicLong();
+	private final Map<Endpoint, ConcurrentHistogram> latencies = new LinkedHashMap<>();
+	private final Map<Endpoint, LongAdder> errors = new LinkedHashMap<>();
+
+	LoadTest(String baseUrl, int clients, long durationSeconds, long warmupSeconds, int fileSize, Endpoint[] mix) {
+
+		this.baseUrl = baseUrl;
+		this.clients = clients;
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.fileSize = fileSize;
+		this.mix = mix;
+		for (Endpoint endpoint : Endpoint.values()) {
+			latencies.put(endpoint, new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3));
+			errors.put(endpoint, new LongAdder());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		SimpleCommandLinePropertySource options = new SimpleCommandLinePropertySource(args);
+		int clients = Integer.parseInt(option(options, "clients", "32"));
+		long duration = Long.parseLong(option(options, "duration", "60"));
+		long warmup = Long.parseLong(option(options, "warmup", "10"));
+		int images = Integer.parseInt(option(options, "images", "100"));
+		int fileSize = Integer.parseInt(option(options, "file-size", "65536"));
+		Endpoint[] mix = parseMix(option(options, "mix", "index:40,raw:45,upload:10,delete:5"));
+		File results = new File(option(options, "results", "load-test.json"));
+
+		System.setProperty("spring.devtools.restart.enabled", "false");
+		Path root = Files.createTempDirectory("springagram-load");
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(LearningSpringBootVideoApplication.class)
+			.properties(
+				"server.port=0",
+				"spring.datasource.url=jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_ON_EXIT=FALSE",
+				"springagram.storage.root=" + root.resolve("storage"),
+				"springagram.thumbnail.root=" + root.resolve("thumbnails"),
+				"logging.level.root=WARN")
+			.run();
+		try {
+			int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+			LoadTest loadTest = new LoadTest("http://localhost:" + port, clients, duration, warmup, fileSize, mix);
+			loadTest.seed(images);
+			loadTest.run();
+			loadTest.report(duration, results);
+		} finally {
+			context.close();
+			FileSystemUtils.deleteRecursively(root.toFile());
+		}
+	}
+
+	void seed(int images) throws IOException {
+
+		LoadTestClient client = new LoadTestClient(baseUrl);
+		client.login("greg", "turnquist");
+		byte[] content = newContent();
+		for (int i = 0; i < images; i++) {
+			String name = nextName(content);
+			if (client.upload(name, content) != Endpoint.UPLOAD.expectedStatus) {
+				throw new IllegalStateException("Could not seed " + name);
+			}
+			gallery.add(name);
+		}
+	}
+
+	void run() throws InterruptedException {
+
+		long start = System.nanoTime();
+		long measureFrom = start + warmupNanos;
+		long end = measureFrom + durationNanos;
+
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		for (int i = 0; i < clients; i++) {
+			executor.execute(() -> {
+				try {
+					LoadTestClient client = new LoadTestClient(baseUrl);
+					client.login("greg", "turnquist");
+					byte[] content = newContent();
+					while (System.nanoTime() < end) {
+						Endpoint endpoint = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+						long requestStart = System.nanoTime();
+						int status = call(client, endpoint, content);
+						if (requestStart >= measureFrom) {
+							latencies.get(endpoint).recordValue(
+								Math.min((System.nanoTime() - requestStart) / 1000, TimeUnit.MINUTES.toMicros(1)));
+							if (status != endpoint.expectedStatus) {
+								errors.get(endpoint).increment();
+							}
+						}
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(end - start + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS);
+	}
+
+	private int call(LoadTestClient client, Endpoint endpoint, byte[] content) {
+
+		try {
+			switch (endpoint) {
+				case RAW:
+					String name = gallery.random();
+					return (name != null ? client.raw(name) : client.index());
+				case UPLOAD:
+					String upload = nextName(content);
+					int status = client.upload(upload, content);
+					if (status == Endpoint.UPLOAD.expectedStatus) {
+						gallery.add(upload);
+					}
+					return status;
+				case DELETE:
+					String oldest = gallery.removeOldest();
+					return (oldest != null ? client.delete(oldest) : client.index());
+				default:
+					return client.index();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	void report(long durationSeconds, File results) throws IOException {
+
+		List<Map<String, Object>> rows = new ArrayList<>();
+		System.out.println();
+		System.out.println(String.format("%-24s %9s %7s %9s %9s %9s %9s %9s",
+			"endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Endpoint endpoint : Endpoint.values()) {
+			Histogram histogram = latencies.get(endpoint).copy();
+			Map<String, Object> row = new LinkedHashMap<>();
+			row.put("endpoint", endpoint.label);
+			row.put("requests", histogram.getTotalCount());
+			row.put("errors", errors.get(endpoint).sum());
+			row.put("throughput", (double) histogram.getTotalCount() / durationSeconds);
+			row.put("p50", histogram.getValueAtPercentile(50.0) / 1000.0);
+			row.put("p99", histogram.getValueAtPercentile(99.0) / 1000.0);
+			row.put("p999", histogram.getValueAtPercentile(99.9) / 1000.0);
+			row.put("max", histogram.getMaxValue() / 1000.0);
+			rows.add(row);
+			System.out.println(String.format("%-24s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f",
+				row.values().toArray()));
+		}
+
+		Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("clients", clients);
+		summary.put("durationSeconds", durationSeconds);
+		summary.put("fileSize", fileSize);
+		summary.put("endpoints", rows);
+		results.getAbsoluteFile().getParentFile().mkdirs();
+		new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(results, summary);
+		System.out.println();
+		System.out.println("Results written to " + results.getAbsolutePath());
+	}
+
+	private byte[] newContent() {
+		byte[] content = new byte[fileSize];
+		ThreadLocalRandom.current().nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Changes the first bytes of the content along with the name, so every upload is a new blob in storage.
+	 */
+	private String nextName(byte[] content) {
+		long n = uploads.incrementAndGet();
+		for (int i = 0; i < Math.min(8, content.length); i++) {
+			content[i] = (byte) (n >>> (8 * i));
+		}
+		return "load-" + n + ".jpg";
+	}
+
+	private static String option(SimpleCommandLinePropertySource options, String name, String defaultValue) {
+		return (options.containsProperty(name) ? options.getProperty(name) : defaultValue);
+	}
+
+	/**
+	 * @param mix e.g. {@code index:40,raw:45,upload:10,delete:5}
+	 * @return one slot per unit of weight, so a uniformly random slot follows the mix
+	 */
+	static Endpoint[] parseMix(String mix) {
+
+		List<Endpoint> slots = new ArrayList<>();
+		for (String entry : mix.split(",")) {
+			String[] parts = entry.trim().split(":");
+			Endpoint endpoint = Endpoint.valueOf(parts[0].trim().toUpperCase());
+			for (int i = 0; i < Integer.parseInt(parts[1].trim()); i++) {
+				slots.add(endpoint);
+			}
+		}
+		if (slots.isEmpty()) {
+			throw new IllegalArgumentException("Empty mix: " + mix);
+		}
+		return slots.toArray(new Endpoint[slots.size()]);
+	}
+
+	/**
+	 * The images currently in the gallery, oldest first. Deletes take the oldest and views pick any of them.
+	 */
+	static class Gallery {
+
+		private final List<String> names = new ArrayList<>();
+		private int oldest;
+
+		synchronized void add(String name) {
+			names.add(name);
+		}
+
+		synchronized String random() {
+			int live = names.size() - oldest;
+			return (live > 0 ? names.get(oldest + ThreadLocalRandom.current().nextInt(live)) : null);
+		}
+
+		synchronized String removeOldest() {
+			if (oldest == names.size()) {
+				return null;
+			}
+			String name = names.set(oldest++, null);
+			if (oldest > 1024 && oldest * 2 > names.size()) {
+				names.subList(0, oldest).clear();
+				oldest = 0;
+			}
+			return name;
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One simulated user: its own session cookie and CSRF token, talking plain {@link HttpURLConnection} so
+ * connections are kept alive and reused the way a browser would.
+ *
+ * @author Greg Turnquist
+ */
+class LoadTestClient {
+
+	private static final Pattern CSRF = Pattern.compile("name=\"_csrf\" value=\"([^\"]+)\"");
+	private static final String BOUNDARY = "----springagram-load-test";
+
+	private final String baseUrl;
+	private final byte[] buffer = new byte[8192];
+	private String sessionCookie;
+	private String csrfToken;
+
+	LoadTestClient(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	void login(String username, String password) throws IOException {
+
+		index();
+		byte[] form = ("username=" + URLEncoder.encode(username, "UTF-8")
+			+ "&password=" + URLEncoder.encode(password, "UTF-8")
+			+ "&_csrf=" + csrfToken).getBytes(StandardCharsets.UTF_8);
+		HttpURLConnection connection = open("POST", "/login");
+		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		send(connection, form);
+		if (finish(connection) != 302 || connection.getHeaderField("Location").contains("error")) {
+			throw new IllegalStateException("Could not log in as " + username);
+		}
+		// The session id and token both change on login
+		index();
+	}
+
+	int index() throws IOException {
+
+		HttpURLConnection connection = open("GET", "/");
+		int status = connection.getResponseCode();
+		String page = new String(readAll(connection), StandardCharsets.UTF_8);
+		rememberSession(connection);
+		Matcher matcher = CSRF.matcher(page);
+		if (matcher.find()) {
+			csrfToken = matcher.group(1);
+		}
+		return status;
+	}
+
+	int raw(String name) throws IOException {
+		return finish(open("GET", "/images/" + name + "/raw"));
+	}
+
+	int upload(String name, byte[] content) throws IOException {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(content.length + 256);
+		body.write(("--" + BOUNDARY + "\r\n"
+			+ "Content-Disposition: form-data; name=\"file\"; filename=\"" + name + "\"\r\n"
+			+ "Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+		body.write(content);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+		HttpURLConnection connection = open("POST", "/images");
+		connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+		connection.setRequestProperty("X-CSRF-TOKEN", csrfToken);
+		send(connection, body.toByteArray());
+		return finish(connection);
+	}
+
+	int delete(String name) throws IOException {
+
+		HttpURLConnection connection = open("DELETE", "/images/" + name);
+		connection.setRequestProperty("X-CSRF-TOKEN", csrfToken);
+		return finish(connection);
+	}
+
+	private HttpURLConnection open(String method, String path) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setInstanceFollowRedirects(false);
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(30000);
+		if (sessionCookie != null) {
+			connection.setRequestProperty("Cookie", sessionCookie);
+		}
+		return connection;
+	}
+
+	private static void send(HttpURLConnection connection, byte[] body) throws IOException {
+
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Drain the body (the connection only goes back to the keep-alive pool once it has been read) and
+	 * pick up any new session.
+	 */
+	private int finish(HttpURLConnection connection) throws IOException {
+
+		int status = connection.getResponseCode();
+		InputStream in = (status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+		if (in != null) {
+			try (InputStream body = in) {
+				while (body.read(buffer) != -1) {
+				}
+			}
+		}
+		rememberSession(connection);
+		return status;
+	}
+
+	private byte[] readAll(HttpURLConnection connection) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = (connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream());
+		if (in != null) {
+			try (InputStream body = in) {
+				int read;
+				while ((read = body.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private void rememberSession(HttpURLConnection connection) {
+
+		List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+		if (cookies == null) {
+			return;
+		}
+		for (String cookie : cookies) {
+			if (cookie.startsWith("JSESSIONID=")) {
+				sessionCookie = cookie.substring(0, cookie.indexOf(';') > 0 ? cookie.indexOf(';') : cookie.length());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.ehcache.EhCacheCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @author Greg Turnquist
+ */
+@Configuration
+@EnableCaching
+public class CacheConfiguration {
+
+	/**
+	 * Wraps the same ehcache singleton Hibernate's second-level cache runs on, so every region is configured
+	 * in {@code ehcache.xml}. Boot would otherwise build a second manager from that file and the two would clash.
+	 */
+	@Bean
+	EhCacheCacheManager cacheManager() {
+		return new EhCacheCacheManager(net.sf.ehcache.CacheManager.create());
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a keyset (seek) pagination. Instead of page numbers, the neighbouring pages are addressed by
+ * opaque cursors that remember the id to continue from, so fetching any page costs the same as the first
+ * one and rows inserted elsewhere never shift what a page shows.
+ *
+ * @author Greg Turnquist
+ */
+public class CursorPage<T> {
+
+	private final List<T> content;
+	private final int size;
+	private final String previous;
+	private final String next;
+
+	public CursorPage(List<T> content, int size, String previous, String next) {
+		this.content = content;
+		this.size = size;
+		this.previous = previous;
+		this.next = next;
+	}
+
+	public List<T> getContent() {
+		return content;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return cursor for the page before this one, or {@literal null} if this is the first page
+	 */
+	public String getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * @return cursor for the page after this one, or {@literal null} if this is the last page
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	public boolean hasPrevious() {
+		return previous != null;
+	}
+
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	static String after(long id) {
+		return encode("a" + id);
+	}
+
+	static String before(long id) {
+		return encode("b" + id);
+	}
+
+	private static String encode(String cursor) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return the decoded cursor, e.g. {@code a42} for "after id 42", or {@literal null} if it isn't one of ours
+	 */
+	static String decode(String cursor) {
+		try {
+			String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+			return decoded.matches("[ab]-?\\d{1,18}") ? decoded : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import org.apache.activemq.broker.BrokerService;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Runs an in-memory ActiveMQ broker with a STOMP connector, for trying out the broker relay (see
+ * {@link WebSocketConfiguration}) without installing anything. Start one node with this profile, then point
+ * others at it with {@code springagram.broker.relay.enabled=true} and the same port.
+ *
+ * ActiveMQ is only on the classpath for {@code bootRun} and the tests, not in the packaged jar; a production
+ * deployment relays through a broker of its own.
+ *
+ * @author Greg Turnquist
+ */
+@Configuration
+@Profile("embedded-broker")
+public class EmbeddedBrokerConfiguration {
+
+	@Bean(initMethod = "start", destroyMethod = "stop")
+	BrokerService embeddedBroker(@Value("${springagram.broker.relay.port:61613}") int port) throws Exception {
+
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("springagram");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.addConnector("stomp://localhost:" + port);
+		return broker;
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes hit/miss/put counts, hit ratio and size for every Hibernate second-level and query cache region
+ * (see {@code ehcache.xml}) under {@code /metrics}.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class HibernateCacheMetrics implements PublicMetrics {
+
+	private final Statistics statistics;
+
+	@Autowired
+	public HibernateCacheMetrics(EntityManagerFactory entityManagerFactory) {
+		this.statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		for (String region : statistics.getSecondLevelCacheRegionNames()) {
+			SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(region);
+			String prefix = "hibernate.cache." + region.substring(region.lastIndexOf('.') + 1) + ".";
+			long hits = regionStatistics.getHitCount();
+			long misses = regionStatistics.getMissCount();
+
+			metrics.add(new Metric<Number>(prefix + "hits", hits));
+			metrics.add(new Metric<Number>(prefix + "misses", misses));
+			metrics.add(new Metric<Number>(prefix + "puts", regionStatistics.getPutCount()));
+			metrics.add(new Metric<Number>(prefix + "hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)));
+			metrics.add(new Metric<Number>(prefix + "size", regionStatistics.getElementCountInMemory()));
+		}
+		return metrics;
+	}
+
+}
@@ -16,29 +16,43 @@
 package com.greglturnquist.learningspringboot;
 
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
-import org.springframework.data.domain.Page;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.data.domain.Pageable;
-import org.springframework.http.MediaType;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 /**
+ * Image transfers (serving, uploading) finish on the {@link ImageIoExecutor} rather than a Tomcat request
+ * thread; see {@link AsyncConfiguration}.
+ *
  * @author Greg Turnquist
  */
 @Controller
@@ -50,55 +64,133 @@ public class HomeController {
 	private static final String FILENAME = "{filename:.+}";
 
 	private final ImageService imageService;
+	private final RawImageWriter rawImageWriter;
 
 	@Autowired
-	public HomeController(ImageService imageService) {
+	public HomeController(ImageService imageService, RawImageWriter rawImageWriter) {
 
 		this.imageService = imageService;
+		this.rawImageWriter = rawImageWriter;
 	}
 
 	@RequestMapping(value = "/")
-	public String index(Model model, Pageable pageable, @AuthenticationPrincipal Object auth) throws IOException {
-		final Page<Image> page = imageService.findPage(pageable);
+	public String index(Model model, Pageable pageable,
+						@RequestParam(required = false) String cursor,
+						@AuthenticationPrincipal Object auth) throws IOException {
+		final CursorPage<ImageSummary> page = imageService.findPage(cursor, pageable.getPageSize());
 		model.addAttribute("page", page);
+		model.addAttribute("cursor", cursor);
 		if (page.hasPrevious()) {
-			model.addAttribute("prev", pageable.previousOrFirst());
+			model.addAttribute("prev", page.getPrevious());
 		}
 		if (page.hasNext()) {
-			model.addAttribute("next", pageable.next());
+			model.addAttribute("next", page.getNext());
 		}
 		return "index";
 	}
 
 	@RequestMapping(method = RequestMethod.GET, value = BASE_PATH + "/" + FILENAME + "/raw")
-	@ResponseBody
-	public ResponseEntity<?> oneRawImage(@PathVariable String filename,
-										 @AuthenticationPrincipal Object auth) {
+	public StreamingResponseBody oneRawImage(@PathVariable String filename,
+											 HttpServletRequest request, HttpServletResponse response,
+											 @AuthenticationPrincipal Object auth) throws IOException {
+
+		Resource file = imageService.findOneImage(filename);
+		if (!file.exists()) {
+			response.sendError(HttpStatus.BAD_REQUEST.value(), "Couldn't find " + filename);
+			return null;
+		}
+		return rawImageWriter.write(file, filename, request, response);
+	}
 
-		try {
-			Resource file = imageService.findOneImage(filename);
-			return ResponseEntity.ok()
-					.contentLength(file.contentLength())
-					.contentType(MediaType.IMAGE_JPEG)
-					.body(new InputStreamResource(file.getInputStream()));
-		} catch (IOException e) {
-			return ResponseEntity.badRequest()
-					.body("Couldn't find " + filename + " => " + e.getMessage());
+	/**
+	 * Upload from the page's form. The multipart body is parsed and spooled to disk on the request thread,
+	 * before this is called, and then copied into storage on the I/O pool, so the file is written twice and a
+	 * slow sender holds a request thread for the whole transfer. That's fine for a browser posting a photo up
+	 * to {@code multipart.max-file-size}; scripts and large or slow clients should use
+	 * {@code PUT /images/{filename}} ({@link #streamFile}) instead.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = BASE_PATH)
+	public Callable<String> createFile(@RequestParam("file") MultipartFile file,
+									   RedirectAttributes redirectAttributes,
+									   @AuthenticationPrincipal Object auth) {
+		return () -> {
+			try {
+				imageService.createImage(file);
+				redirectAttributes.addFlashAttribute("flash.message", "Successfully uploaded " + file.getOriginalFilename());
+			} catch (IOException e) {
+				redirectAttributes.addFlashAttribute("flash.message", "Failed to upload " + file.getOriginalFilename() + " => " + e.getMessage());
+			}
+			return "redirect:/";
+		};
+	}
+
+	/**
+	 * Gallery-sized version of the image. Until the thumbnail has been rendered, this serves the original.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = BASE_PATH + "/" + FILENAME + "/thumb")
+	public StreamingResponseBody oneThumbnail(@PathVariable String filename,
+											  HttpServletRequest request, HttpServletResponse response,
+											  @AuthenticationPrincipal Object auth) throws IOException {
+
+		Resource thumbnail = imageService.findThumbnail(filename);
+		if (thumbnail.exists()) {
+			return rawImageWriter.write(thumbnail, thumbnail.getFilename(), request, response);
 		}
+		return oneRawImage(filename, request, response, auth);
+	}
 
+	/**
+	 * Upload the raw request body as {@code filename}. It needs a signed-in session like any other upload: send
+	 * its {@code JSESSIONID} cookie along with its CSRF token (the {@code _csrf} field in the page's forms) as an
+	 * {@code X-CSRF-TOKEN} header, e.g.
+	 * {@code curl -T cat.jpg -b JSESSIONID=... -H 'X-CSRF-TOKEN: ...' .../images/cat.jpg}.
+	 * Unlike the multipart form, the body is read exactly once, straight into storage, and it is read on the
+	 * I/O pool, so a slow sender doesn't hold a request thread.
+	 */
+	@RequestMapping(method = RequestMethod.PUT, value = BASE_PATH + "/" + FILENAME)
+	public Callable<ResponseEntity<?>> streamFile(@PathVariable String filename,
+												  HttpServletRequest request,
+												  @AuthenticationPrincipal Object auth) {
+
+		// Resolved here; the current request isn't bound to the thread that runs the upload
+		URI location = ServletUriComponentsBuilder.fromCurrentContextPath()
+				.path(BASE_PATH + "/{filename}/raw").buildAndExpand(filename).toUri();
+		return () -> {
+			try {
+				imageService.createImage(filename, request.getInputStream(), request.getContentLengthLong());
+				return ResponseEntity.created(location).build();
+			} catch (FileAlreadyExistsException e) {
+				return ResponseEntity.status(HttpStatus.CONFLICT)
+						.body("Failed to upload " + filename + " => already exists");
+			} catch (MaxUploadSizeExceededException e) {
+				return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+						.body("Failed to upload " + filename + " => " + e.getMessage());
+			}
+		};
 	}
 
-	@RequestMapping(method = RequestMethod.POST, value = BASE_PATH)
-	public String createFile(@RequestParam("file") MultipartFile file,
-							 RedirectAttributes redirectAttributes,
-							 @AuthenticationPrincipal Object auth) {
+	/**
+	 * Bulk upload for ingestion jobs: any number of {@code files} parts, stored together or not at all.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = BASE_PATH + "/batch")
+	public ResponseEntity<?> createFiles(@RequestParam("files") List<MultipartFile> files,
+										 @AuthenticationPrincipal Object auth) throws IOException {
 		try {
-			imageService.createImage(file);
-			redirectAttributes.addFlashAttribute("flash.message", "Successfully uploaded " + file.getOriginalFilename());
-		} catch (IOException e) {
-			redirectAttributes.addFlashAttribute("flash.message", "Failed to upload " + file.getOriginalFilename() + " => " + e.getMessage());
+			return ResponseEntity.status(HttpStatus.CREATED).body(imageService.createImages(files));
+		} catch (FileAlreadyExistsException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT)
+					.body("Failed to upload batch => already exists: " + e.getMessage());
 		}
-		return "redirect:/";
+	}
+
+	/**
+	 * Bulk delete, e.g. {@code DELETE /images?name=cat.jpg&name=dog.jpg}. Responds with the names that were
+	 * actually deleted.
+	 */
+	@RequestMapping(method = RequestMethod.DELETE, value = BASE_PATH)
+	public ResponseEntity<List<String>> deleteFiles(@RequestParam("name") List<String> names,
+													@AuthenticationPrincipal Object auth) throws IOException {
+		return ResponseEntity.ok(imageService.deleteImages(names));
 	}
 
 	@RequestMapping(method = RequestMethod.DELETE, value = BASE_PATH + "/" + FILENAME)
@@ -108,10 +200,32 @@ public class HomeController {
 		try {
 			imageService.deleteImage(filename);
 			redirectAttributes.addFlashAttribute("flash.message", "Successfully deleted " + filename);
+		} catch (NoSuchFileException e) {
+			redirectAttributes.addFlashAttribute("flash.message", "Failed to delete " + filename + " => couldn't find it");
 		} catch (IOException|RuntimeException e) {
 			redirectAttributes.addFlashAttribute("flash.message", "Failed to delete " + filename + " => " + e.getMessage());
 		}
 		return "redirect:/";
 	}
 
+	/**
+	 * The I/O pool and its queue are full (counted as {@code imageio.rejected}). Headers for the refused
+	 * transfer may already be set, so start over.
+	 *
+	 * Spring MVC both rethrows the rejection on the request thread and dispatches it back as the async result,
+	 * so this runs twice. Only the dispatch writes the response; the first time around it's left alone.
+	 */
+	@ExceptionHandler(TaskRejectedException.class)
+	public ResponseEntity<String> transferRejected(HttpServletRequest request, HttpServletResponse response) {
+		if (request.isAsyncStarted()) {
+			return null;
+		}
+		if (!response.isCommitted()) {
+			response.reset();
+		}
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+				.header(HttpHeaders.RETRY_AFTER, "1")
+				.body("Too many transfers in progress, try again shortly");
+	}
+
 }
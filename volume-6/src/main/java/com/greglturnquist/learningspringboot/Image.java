@@ -15,29 +15,58 @@
  */
 package com.greglturnquist.learningspringboot;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.OneToOne;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 /**
  * @author Greg Turnquist
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(indexes = {
+	@Index(name = "image_name", columnList = "name", unique = true),
+	@Index(name = "image_digest", columnList = "digest")})
 public class Image {
 
-	@Id @GeneratedValue
+	/**
+	 * Ids are handed out from a pooled sequence, a block of 50 per round trip, so a batch of inserts doesn't
+	 * stop for a {@code nextval} per row and Hibernate can send them as one JDBC batch.
+	 */
+	@Id
+	@GeneratedValue(generator = "image_id")
+	@GenericGenerator(name = "image_id", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator",
+		parameters = {
+			@Parameter(name = "sequence_name", value = "image_seq"),
+			@Parameter(name = "increment_size", value = "50"),
+			@Parameter(name = "optimizer", value = "pooled")})
 	private Long id;
 
 	private String name;
 
+	/**
+	 * Content address of the bytes in {@link ImageStorage}.
+	 */
+	private String digest;
+
 	@OneToOne
 	private User owner;
 
 	private Image() {}
 
-	public Image(String name, User owner) {
+	public Image(String name, String digest, User owner) {
 		this.name = name;
+		this.digest = digest;
 		this.owner = owner;
 	}
 
@@ -57,6 +86,14 @@ public class Image {
 		this.name = name;
 	}
 
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
 	public User getOwner() {
 		return owner;
 	}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.Transient;
+
+import org.springframework.data.domain.Persistable;
+
+/**
+ * Reference count for one content-addressed blob in {@link ShardedImageStorage}. The digest is assigned, not
+ * generated, so the blob says for itself whether it's new. Saving a new one is then a plain insert that fails
+ * if someone else got there first, rather than a merge that would overwrite their count.
+ *
+ * @author Greg Turnquist
+ */
+@Entity
+public class ImageBlob implements Persistable<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	private String digest;
+
+	private long size;
+
+	private long referenceCount;
+
+	@Transient
+	private boolean isNew = true;
+
+	private ImageBlob() {}
+
+	public ImageBlob(String digest, long size) {
+		this.digest = digest;
+		this.size = size;
+		this.referenceCount = 1;
+	}
+
+	@Override
+	public String getId() {
+		return digest;
+	}
+
+	@Override
+	public boolean isNew() {
+		return isNew;
+	}
+
+	@PostLoad
+	@PostPersist
+	void markNotNew() {
+		this.isNew = false;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getReferenceCount() {
+		return referenceCount;
+	}
+
+	public void setReferenceCount(long referenceCount) {
+		this.referenceCount = referenceCount;
+	}
+}
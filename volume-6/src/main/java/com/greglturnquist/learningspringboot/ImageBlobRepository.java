@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.LockModeType;
+
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+/**
+ * @author Greg Turnquist
+ */
+public interface ImageBlobRepository extends CrudRepository<ImageBlob, String> {
+
+	/**
+	 * Blobs in any of the given leaf directories, i.e. whose first four hex digits are one of {@code leaves}.
+	 * Only digests in {@code [from, to)} are looked at, which lets the database walk the primary key rather than
+	 * the whole table, so the range should be no wider than the leaves need.
+	 */
+	@Query("select b from ImageBlob b where b.digest >= :from and b.digest < :to " +
+			"and substring(b.digest, 1, 4) in :leaves")
+	List<ImageBlob> findInLeaves(@Param("from") String from, @Param("to") String to,
+								 @Param("leaves") Collection<String> leaves);
+
+	/**
+	 * Load a blob, holding its row lock until the current transaction ends.
+	 */
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	@Query("select b from ImageBlob b where b.digest = :digest")
+	ImageBlob findAndLock(@Param("digest") String digest);
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the bytes of recently served images in memory, capped at {@code springagram.cache.max-bytes} and
+ * evicted least-recently-used first. Small images are copied into direct (off-heap) buffers; larger ones
+ * are memory-mapped, so the page cache holds them and the Java heap never sees them.
+ *
+ * An image is only admitted the second time it's missed. A doorkeeper remembers a hash of each recent miss in
+ * a fixed-size table ({@code springagram.cache.doorkeeper-slots}), so a crawler or a bulk export that reads
+ * every image once passes straight through without evicting the images that keep getting requested.
+ *
+ * Blobs are content-addressed and never change, so entries only need invalidating once a blob is removed.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class ImageCache implements PublicMetrics {
+
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	private final long mmapThreshold;
+
+	private final LinkedHashMap<String, CachedImage> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	/**
+	 * Digest hashes of recent misses, one per slot. A collision only ever admits an image early, or forgets
+	 * one early.
+	 */
+	private final int[] doorkeeper;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder notAdmitted = new LongAdder();
+
+	@Autowired
+	public ImageCache(@Value("${springagram.cache.max-bytes:67108864}") long maxBytes,
+					  @Value("${springagram.cache.max-entry-bytes:8388608}") long maxEntryBytes,
+					  @Value("${springagram.cache.mmap-threshold:65536}") long mmapThreshold,
+					  @Value("${springagram.cache.doorkeeper-slots:16384}") int doorkeeperSlots) {
+
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, maxBytes), Integer.MAX_VALUE);
+		this.mmapThreshold = mmapThreshold;
+		this.doorkeeper = new int[doorkeeperSlots];
+	}
+
+	/**
+	 * @return the cached image, or {@code blob} itself if it doesn't exist, is too big to cache, or hasn't been
+	 * asked for recently enough to be admitted
+	 */
+	public Resource get(String digest, Resource blob) throws IOException {
+
+		boolean admit;
+		synchronized (this) {
+			CachedImage cached = entries.get(digest);
+			if (cached != null) {
+				hits.increment();
+				return cached;
+			}
+			admit = missedBefore(digest);
+		}
+		misses.increment();
+
+		if (!admit) {
+			notAdmitted.increment();
+			return blob;
+		}
+		if (!blob.exists() || blob.contentLength() > maxEntryBytes) {
+			return blob;
+		}
+
+		CachedImage loaded = load(blob.getFile());
+		synchronized (this) {
+			CachedImage raced = entries.putIfAbsent(digest, loaded);
+			if (raced != null) {
+				return raced;
+			}
+			totalBytes += loaded.length;
+			evictOverflow();
+		}
+		return loaded;
+	}
+
+	/**
+	 * Record a miss for {@code digest}.
+	 *
+	 * @return whether its previous miss is still remembered
+	 */
+	private boolean missedBefore(String digest) {
+
+		int hash = digest.hashCode();
+		int slot = (hash & 0x7fffffff) % doorkeeper.length;
+		if (doorkeeper[slot] == hash) {
+			return true;
+		}
+		doorkeeper[slot] = hash;
+		return false;
+	}
+
+	public synchronized void evict(String digest) {
+
+		CachedImage removed = entries.remove(digest);
+		if (removed != null) {
+			totalBytes -= removed.length;
+		}
+	}
+
+	private void evictOverflow() {
+
+		Iterator<CachedImage> eldest = entries.values().iterator();
+		while (totalBytes > maxBytes && eldest.hasNext()) {
+			totalBytes -= eldest.next().length;
+			eldest.remove();
+			evictions.increment();
+		}
+	}
+
+	private CachedImage load(File file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long lastModified = file.lastModified();
+			int length = (int) channel.size();
+			ByteBuffer buffer;
+			if (length >= mmapThreshold) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} else {
+				buffer = ByteBuffer.allocateDirect(length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+			}
+			return new CachedImage(file, buffer.asReadOnlyBuffer(), lastModified);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		synchronized (this) {
+			metrics.add(new Metric<Number>("imagecache.entries", entries.size()));
+			metrics.add(new Metric<Number>("imagecache.bytes", totalBytes));
+		}
+		metrics.add(new Metric<Number>("imagecache.hits", hits.sum()));
+		metrics.add(new Metric<Number>("imagecache.misses", misses.sum()));
+		metrics.add(new Metric<Number>("imagecache.evictions", evictions.sum()));
+		metrics.add(new Metric<Number>("imagecache.admission.rejected", notAdmitted.sum()));
+		return metrics;
+	}
+
+	/**
+	 * An image held in memory. {@link RawImageWriter} serves these straight from the buffer.
+	 */
+	static final class CachedImage extends AbstractResource {
+
+		private final File file;
+		private final ByteBuffer buffer;
+		private final int length;
+		private final long lastModified;
+
+		private CachedImage(File file, ByteBuffer buffer, long lastModified) {
+			this.file = file;
+			this.buffer = buffer;
+			this.length = buffer.remaining();
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return a view of the bytes with its own position and limit
+		 */
+		ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+
+		@Override
+		public boolean exists() {
+			return true;
+		}
+
+		@Override
+		public long contentLength() {
+			return length;
+		}
+
+		@Override
+		public long lastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public File getFile() {
+			return file;
+		}
+
+		@Override
+		public String getFilename() {
+			return file.getName();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			ByteBuffer view = getBuffer();
+			return new InputStream() {
+				@Override
+				public int read() {
+					return view.hasRemaining() ? view.get() & 0xff : -1;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					if (!view.hasRemaining()) {
+						return -1;
+					}
+					int n = Math.min(len, view.remaining());
+					view.get(b, off, n);
+					return n;
+				}
+			};
+		}
+
+		@Override
+		public String getDescription() {
+			return "cached image [" + file + "]";
+		}
+	}
+
+}
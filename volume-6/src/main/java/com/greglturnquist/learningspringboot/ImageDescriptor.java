@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * What subscribers to the image topics get told about an image: enough to draw (or remove) its gallery row
+ * without fetching the page again. Pages are keyset ranges on {@link #getId() id}, so the id alone tells a
+ * page whether the image falls inside it.
+ *
+ * The URLs are absolute paths, context path included. Descriptors are mostly built after a commit or on the
+ * I/O pool, away from any request, so the context path is handed in rather than taken from the current one.
+ *
+ * @author Greg Turnquist
+ */
+public class ImageDescriptor extends ImageSummary {
+
+	private final String imageUrl;
+	private final String thumbnailUrl;
+
+	public ImageDescriptor(Image image, String contextPath) {
+		super(image.getId(), image.getName(), image.getOwner() != null ? image.getOwner().getUsername() : null);
+		this.imageUrl = url(contextPath, "/images/{filename}/raw", image.getName());
+		this.thumbnailUrl = url(contextPath, "/images/{filename}/thumb", image.getName());
+	}
+
+	public String getImageUrl() {
+		return imageUrl;
+	}
+
+	public String getThumbnailUrl() {
+		return thumbnailUrl;
+	}
+
+	private static String url(String contextPath, String template, String filename) {
+		return UriComponentsBuilder.fromPath(contextPath).path(template).buildAndExpand(filename).encode().toUriString();
+	}
+}
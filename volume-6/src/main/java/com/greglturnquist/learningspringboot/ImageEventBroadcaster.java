@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessException;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects image events and sends them to {@code /topic/newImage} and {@code /topic/deleteImage} as one
+ * array per topic per window, rather than a frame per image. A window closes after
+ * {@code springagram.events.window-ms}, or as soon as {@code springagram.events.max-batch} events are waiting.
+ * Each frame says how many events it carries in a {@value #MERGED_HEADER} header.
+ *
+ * Delete frames also carry the lowest and highest id left in {@value #FIRST_ID_HEADER} and
+ * {@value #LAST_ID_HEADER} headers (neither once the gallery is empty). Pages are keyset ranges, so that's
+ * enough for every open page to tell whether anything is still before or after it, without each of them
+ * asking the server. The ids are read once per frame, when it's sent.
+ *
+ * An image that is added and deleted within the same window is never announced at all. That also means a
+ * single window never mentions the same image on both topics, so it doesn't matter in which order a client
+ * receives the two frames. Windows themselves go out strictly one after another, so an image added in one
+ * window and deleted in the next is always announced in that order.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class ImageEventBroadcaster implements PublicMetrics, DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageEventBroadcaster.class);
+
+	static final String NEW_IMAGE = "/topic/newImage";
+	static final String DELETE_IMAGE = "/topic/deleteImage";
+	static final String MERGED_HEADER = "merged-events";
+	static final String FIRST_ID_HEADER = "first-id";
+	static final String LAST_ID_HEADER = "last-id";
+
+	private final SimpMessagingTemplate messagingTemplate;
+	private final ImageRepository imageRepository;
+	private final int maxBatch;
+	private final ThreadPoolTaskScheduler scheduler;
+
+	/**
+	 * Held from taking a window's events until they're sent, so a scheduled flush and one triggered by a full
+	 * batch can't overtake each other. A {@link ReentrantLock} rather than a monitor, since it's held across
+	 * the send and flushes may run on virtual threads.
+	 */
+	private final Lock sendLock = new ReentrantLock();
+
+	private Map<Long, ImageDescriptor> added = new LinkedHashMap<>();
+	private Map<Long, ImageDescriptor> deleted = new LinkedHashMap<>();
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong lastMerged = new AtomicLong();
+	private final AtomicLong maxMerged = new AtomicLong();
+
+	@Autowired
+	public ImageEventBroadcaster(SimpMessagingTemplate messagingTemplate, ImageRepository imageRepository,
+								 @Value("${springagram.events.window-ms:200}") long windowMillis,
+								 @Value("${springagram.events.max-batch:100}") int maxBatch) {
+
+		this.messagingTemplate = messagingTemplate;
+		this.imageRepository = imageRepository;
+		this.maxBatch = maxBatch;
+
+		this.scheduler = new ThreadPoolTaskScheduler();
+		this.scheduler.setThreadNamePrefix("image-events-");
+		this.scheduler.initialize();
+		// The first window closes one window from now, not straight away
+		this.scheduler.scheduleWithFixedDelay(this::flush, new Date(System.currentTimeMillis() + windowMillis),
+				windowMillis);
+	}
+
+	public void added(ImageDescriptor image) {
+		added(Collections.singletonList(image));
+	}
+
+	public void added(Collection<ImageDescriptor> images) {
+
+		boolean full;
+		synchronized (this) {
+			for (ImageDescriptor image : images) {
+				added.put(image.getId(), image);
+			}
+			full = pending() >= maxBatch;
+		}
+		received.addAndGet(images.size());
+		if (full) {
+			flush();
+		}
+	}
+
+	public void deleted(ImageDescriptor image) {
+		deleted(Collections.singletonList(image));
+	}
+
+	public void deleted(Collection<ImageDescriptor> images) {
+
+		boolean full;
+		synchronized (this) {
+			for (ImageDescriptor image : images) {
+				if (added.remove(image.getId()) != null) {
+					cancelled.addAndGet(2);
+				} else {
+					deleted.put(image.getId(), image);
+				}
+			}
+			full = pending() >= maxBatch;
+		}
+		received.addAndGet(images.size());
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 * Send whatever has accumulated. Called at the end of every window, and early when a batch fills up.
+	 */
+	public void flush() {
+
+		sendLock.lock();
+		try {
+			Map<Long, ImageDescriptor> newImages;
+			Map<Long, ImageDescriptor> deletedImages;
+			synchronized (this) {
+				if (pending() == 0) {
+					return;
+				}
+				newImages = added;
+				deletedImages = deleted;
+				added = new LinkedHashMap<>();
+				deleted = new LinkedHashMap<>();
+			}
+			if (!deletedImages.isEmpty()) {
+				send(DELETE_IMAGE, deletedImages, idRange());
+			}
+			send(NEW_IMAGE, newImages, Collections.emptyMap());
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	private void send(String destination, Map<Long, ImageDescriptor> images, Map<String, Object> headers) {
+
+		if (images.isEmpty()) {
+			return;
+		}
+		List<ImageDescriptor> payload = new ArrayList<>(images.values());
+		Map<String, Object> frameHeaders = new HashMap<>(headers);
+		frameHeaders.put(MERGED_HEADER, payload.size());
+		try {
+			messagingTemplate.convertAndSend(destination, payload, frameHeaders);
+		} catch (MessagingException e) {
+			// e.g. the relay's broker is down. Browsers catch up on their next page load.
+			log.warn("Dropped " + payload.size() + " event(s) for " + destination + ": " + e.getMessage());
+			dropped.addAndGet(payload.size());
+			return;
+		}
+
+		frames.incrementAndGet();
+		sent.addAndGet(payload.size());
+		lastMerged.set(payload.size());
+		maxMerged.accumulateAndGet(payload.size(), Math::max);
+	}
+
+	/**
+	 * @return the lowest and highest image id as headers, or none if there are no images or they can't be read
+	 */
+	private Map<String, Object> idRange() {
+
+		Long first;
+		Long last;
+		try {
+			first = imageRepository.findMinId();
+			last = imageRepository.findMaxId();
+		} catch (DataAccessException e) {
+			// Pages keep their links as they are until the next frame or page load
+			log.warn("Couldn't read the range of image ids: " + e.getMessage());
+			return Collections.emptyMap();
+		}
+		if (first == null || last == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, Object> headers = new HashMap<>();
+		headers.put(FIRST_ID_HEADER, String.valueOf(first));
+		headers.put(LAST_ID_HEADER, String.valueOf(last));
+		return headers;
+	}
+
+	private int pending() {
+		return added.size() + deleted.size();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		long frameCount = frames.get();
+		int pending;
+		synchronized (this) {
+			pending = pending();
+		}
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Number>("imageevents.received", received.get()));
+		metrics.add(new Metric<Number>("imageevents.cancelled", cancelled.get()));
+		metrics.add(new Metric<Number>("imageevents.pending", pending));
+		metrics.add(new Metric<Number>("imageevents.frames", frameCount));
+		metrics.add(new Metric<Number>("imageevents.dropped", dropped.get()));
+		metrics.add(new Metric<Number>("imageevents.merged.last", lastMerged.get()));
+		metrics.add(new Metric<Number>("imageevents.merged.max", maxMerged.get()));
+		metrics.add(new Metric<Number>("imageevents.merged.mean", frameCount == 0 ? 0.0 : (double) sent.get() / frameCount));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		scheduler.shutdown();
+		flush();
+	}
+
+}
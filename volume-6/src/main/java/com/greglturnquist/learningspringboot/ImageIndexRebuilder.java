@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StopWatch;
+
+/**
+ * Startup for {@code springagram.startup.mode=production}: storage is kept as it is, and the {@link Image} index
+ * is rebuilt from the {@link ImageManifest} once the application is up. Entries are read and indexed in parallel,
+ * in batches of one transaction each. A batch holds every entry for the blobs it covers, so each blob's
+ * references are counted in one place. Images the database already has are left alone, so this is also safe
+ * over a database that survived the restart. Uploads aren't held back meanwhile; should one create an image
+ * under a name that's being indexed, its batch is retried an entry at a time and the clashing entry skipped.
+ *
+ * Until the rebuild is done, the gallery is incomplete and this reports {@code OUT_OF_SERVICE}, which takes
+ * {@code /health} (and with it, any load balancer watching it) along.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+@ConditionalOnProperty(name = "springagram.startup.mode", havingValue = "production")
+public class ImageIndexRebuilder implements HealthIndicator, ApplicationListener<ApplicationReadyEvent>,
+		DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageIndexRebuilder.class);
+
+	private final ImageManifest imageManifest;
+	private final ImageStorage imageStorage;
+	private final ImageRepository imageRepository;
+	private final UserRepository userRepository;
+	private final TransactionTemplate transactionTemplate;
+	private final int batchSize;
+	private final ThreadPoolTaskExecutor executor;
+
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong indexed = new AtomicLong();
+	private final AtomicLong alreadyIndexed = new AtomicLong();
+	private final AtomicLong missingBlobs = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+
+	private volatile String phase = "waiting to start";
+	private volatile Health health;
+
+	@Autowired
+	public ImageIndexRebuilder(ImageManifest imageManifest, ImageStorage imageStorage,
+							   ImageRepository imageRepository, UserRepository userRepository,
+							   PlatformTransactionManager transactionManager,
+							   @Value("${springagram.startup.rebuild-threads:8}") int threads,
+							   @Value("${springagram.startup.rebuild-batch-size:500}") int batchSize) {
+
+		this.imageManifest = imageManifest;
+		this.imageStorage = imageStorage;
+		this.imageRepository = imageRepository;
+		this.userRepository = userRepository;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.batchSize = batchSize;
+
+		this.executor = new ThreadPoolTaskExecutor();
+		this.executor.setCorePoolSize(threads);
+		this.executor.setMaxPoolSize(threads);
+		this.executor.setThreadNamePrefix("index-rebuild-");
+		this.executor.initialize();
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+
+		Thread rebuild = new Thread(this::rebuild, "index-rebuild");
+		rebuild.setDaemon(true);
+		rebuild.start();
+	}
+
+	@Override
+	public Health health() {
+
+		Health rebuilt = this.health;
+		if (rebuilt != null) {
+			return rebuilt;
+		}
+		return Health.outOfService()
+			.withDetail("phase", phase)
+			.withDetail("entries", entries.get())
+			.withDetail("indexed", indexed.get() + alreadyIndexed.get())
+			.build();
+	}
+
+	/**
+	 * @return whether the index has been rebuilt (and the rebuild didn't fail)
+	 */
+	public boolean isRebuilt() {
+		Health rebuilt = this.health;
+		return rebuilt != null && Status.UP.equals(rebuilt.getStatus());
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+
+	void rebuild() {
+
+		StopWatch timings = new StopWatch("Image index rebuild");
+		try {
+			phase = "accounts";
+			timings.start(phase);
+			if (userRepository.count() == 0) {
+				ImageService.createAccounts(userRepository);
+			}
+			timings.stop();
+
+			phase = "reading manifest";
+			timings.start(phase);
+			List<ImageManifest.Entry> manifest = imageManifest.readAll(executor);
+			entries.set(manifest.size());
+			timings.stop();
+
+			phase = "indexing";
+			timings.start(phase);
+			manifest.sort(Comparator.comparing(ImageManifest.Entry::getDigest));
+			List<CompletableFuture<Void>> batches = new ArrayList<>();
+			for (int start = 0, end; start < manifest.size(); start = end) {
+				end = Math.min(start + batchSize, manifest.size());
+				while (end < manifest.size() && manifest.get(end).getDigest().equals(manifest.get(end - 1).getDigest())) {
+					end++;
+				}
+				List<ImageManifest.Entry> batch = manifest.subList(start, end);
+				batches.add(CompletableFuture.runAsync(() -> indexBatch(batch), executor));
+			}
+			CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).join();
+			timings.stop();
+
+			log.info("Indexed " + indexed.get() + " of " + entries.get() + " images from storage (" +
+				alreadyIndexed.get() + " already indexed, " + missingBlobs.get() + " without their blob, " +
+				conflicts.get() + " clashing with a new upload)\n" +
+				timings.prettyPrint());
+			health = Health.up()
+				.withDetail("entries", entries.get())
+				.withDetail("indexed", indexed.get())
+				.withDetail("alreadyIndexed", alreadyIndexed.get())
+				.withDetail("missingBlobs", missingBlobs.get())
+				.withDetail("conflicts", conflicts.get())
+				.withDetail("millis", timings.getTotalTimeMillis())
+				.build();
+		} catch (IOException|RuntimeException e) {
+			Exception cause = (e instanceof CompletionException && e.getCause() instanceof Exception ?
+				(Exception) e.getCause() : e);
+			log.error("Rebuilding the image index failed while " + phase, cause);
+			health = Health.down().withDetail("phase", phase).withException(cause).build();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Index the batch in one transaction. If an image was created under one of its names since {@link #index}
+	 * looked, the whole transaction fails on the unique name; then go again one entry per transaction, and
+	 * skip the ones that still clash.
+	 */
+	private void indexBatch(List<ImageManifest.Entry> batch) {
+
+		try {
+			transactionTemplate.execute(status -> index(batch)).addTo(this);
+		} catch (DataIntegrityViolationException e) {
+			for (ImageManifest.Entry entry : batch) {
+				try {
+					transactionTemplate.execute(status -> index(Collections.singletonList(entry))).addTo(this);
+				} catch (DataIntegrityViolationException conflict) {
+					log.warn("Not indexing " + entry.getName() + ": an image by that name was just created");
+					conflicts.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the batch's images that aren't indexed yet, each taking a reference on its blob.
+	 *
+	 * @return what was done, to be counted once the transaction commits
+	 */
+	private Tally index(List<ImageManifest.Entry> batch) {
+
+		Set<String> existing = imageRepository.findByNameIn(
+				batch.stream().map(ImageManifest.Entry::getName).collect(Collectors.toList())).stream()
+			.map(Image::getName)
+			.collect(Collectors.toSet());
+
+		Map<String, List<ImageManifest.Entry>> byDigest = batch.stream()
+			.filter(entry -> !existing.contains(entry.getName()))
+			.collect(Collectors.groupingBy(ImageManifest.Entry::getDigest));
+		Tally tally = new Tally();
+		tally.alreadyIndexed = existing.size();
+
+		List<Image> images = new ArrayList<>(batch.size());
+		for (Map.Entry<String, List<ImageManifest.Entry>> blob : byDigest.entrySet()) {
+			try {
+				if (!imageStorage.adopt(blob.getKey(), blob.getValue().size())) {
+					log.warn("Not indexing " + blob.getValue().size() + " image(s): blob " + blob.getKey() + " is missing");
+					tally.missingBlobs += blob.getValue().size();
+					continue;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			for (ImageManifest.Entry entry : blob.getValue()) {
+				User owner = (entry.getOwner() != null ? userRepository.findByUsername(entry.getOwner()) : null);
+				images.add(new Image(entry.getName(), entry.getDigest(), owner));
+			}
+		}
+		imageRepository.save(images);
+		tally.indexed = images.size();
+		return tally;
+	}
+
+	private static final class Tally {
+
+		private long indexed;
+		private long alreadyIndexed;
+		private long missingBlobs;
+
+		void addTo(ImageIndexRebuilder rebuilder) {
+			rebuilder.indexed.addAndGet(indexed);
+			rebuilder.alreadyIndexed.addAndGet(alreadyIndexed);
+			rebuilder.missingBlobs.addAndGet(missingBlobs);
+		}
+	}
+
+}
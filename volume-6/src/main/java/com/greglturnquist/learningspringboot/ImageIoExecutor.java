@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * The bounded pool that image transfers run on once {@link HomeController} has handed them off, so a crowd of
+ * slow clients ties up these threads rather than Tomcat's and the gallery page keeps being served. When the
+ * queue is full the transfer is refused with a {@link TaskRejectedException}, which the controller answers
+ * with {@code 503}.
+ *
+ * Tracks how long transfers wait in the queue and how long they run.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class ImageIoExecutor implements AsyncTaskExecutor, PublicMetrics, DisposableBean {
+
+	private final ThreadPoolTaskExecutor executor;
+
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalWaitMillis = new AtomicLong();
+	private final AtomicLong maxWaitMillis = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+	private final AtomicLong maxMillis = new AtomicLong();
+
+	@Autowired
+	public ImageIoExecutor(@Value("${springagram.io.threads:64}") int threads,
+						   @Value("${springagram.io.queue-capacity:1000}") int queueCapacity,
+						   @Value("${springagram.threads.virtual:false}") boolean virtualThreads) {
+
+		this.executor = new ThreadPoolTaskExecutor();
+		this.executor.setCorePoolSize(threads);
+		this.executor.setMaxPoolSize(threads);
+		this.executor.setQueueCapacity(queueCapacity);
+		this.executor.setThreadNamePrefix("image-io-");
+		if (virtualThreads) {
+			this.executor.setThreadFactory(VirtualThreads.factory("image-io-"));
+		}
+		this.executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		this.executor.initialize();
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		execute(task, TIMEOUT_INDEFINITE);
+	}
+
+	@Override
+	public void execute(Runnable task, long startTimeout) {
+		try {
+			executor.execute(timed(task), startTimeout);
+		} catch (TaskRejectedException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	public Future<?> submit(Runnable task) {
+		try {
+			return executor.submit(timed(task));
+		} catch (TaskRejectedException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task) {
+
+		long queued = System.nanoTime();
+		try {
+			return executor.submit(() -> {
+				long start = started(queued);
+				try {
+					return task.call();
+				} finally {
+					finished(start);
+				}
+			});
+		} catch (TaskRejectedException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	private Runnable timed(Runnable task) {
+
+		long queued = System.nanoTime();
+		return () -> {
+			long start = started(queued);
+			try {
+				task.run();
+			} finally {
+				finished(start);
+			}
+		};
+	}
+
+	private long started(long queued) {
+
+		long start = System.nanoTime();
+		long waitMillis = (start - queued) / 1000000;
+		started.incrementAndGet();
+		totalWaitMillis.addAndGet(waitMillis);
+		maxWaitMillis.accumulateAndGet(waitMillis, Math::max);
+		return start;
+	}
+
+	private void finished(long start) {
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		totalMillis.addAndGet(millis);
+		maxMillis.accumulateAndGet(millis, Math::max);
+		completed.incrementAndGet();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		long begun = started.get();
+		long done = completed.get();
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Number>("imageio.active", executor.getActiveCount()));
+		metrics.add(new Metric<Number>("imageio.threads", executor.getPoolSize()));
+		metrics.add(new Metric<Number>("imageio.queue.depth", executor.getThreadPoolExecutor().getQueue().size()));
+		metrics.add(new Metric<Number>("imageio.completed", done));
+		metrics.add(new Metric<Number>("imageio.rejected", rejected.get()));
+		metrics.add(new Metric<Number>("imageio.wait.mean", begun == 0 ? 0 : totalWaitMillis.get() / begun));
+		metrics.add(new Metric<Number>("imageio.wait.max", maxWaitMillis.get()));
+		metrics.add(new Metric<Number>("imageio.transfer.mean", done == 0 ? 0 : totalMillis.get() / done));
+		metrics.add(new Metric<Number>("imageio.transfer.max", maxMillis.get()));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+
+}
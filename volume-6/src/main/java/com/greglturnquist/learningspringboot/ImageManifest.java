@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.DigestUtils;
+
+/**
+ * One small file per {@link Image} next to the blobs, recording its name, digest and owner. Blobs are named
+ * by content only, so this is what the image index can be rebuilt from when a node restarts over storage that
+ * outlived its database (see {@link ImageIndexRebuilder}).
+ *
+ * Entries live under {@code images/}, named after the MD5 of the image name and sharded two levels deep like
+ * the blobs.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class ImageManifest {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageManifest.class);
+
+	private static final String NAME = "name";
+	private static final String DIGEST = "digest";
+	private static final String OWNER = "owner";
+	private static final String WRITE = "write";
+
+	private final Path root;
+
+	@Autowired
+	public ImageManifest(@Value("${springagram.storage.root:upload-dir}") String storageRoot) {
+		this.root = Paths.get(storageRoot, "images");
+	}
+
+	/**
+	 * Write the image's entry. Inside a transaction, it goes away again if the transaction rolls back.
+	 */
+	public void record(Image image) throws IOException {
+
+		Entry entry = Entry.of(image);
+		// Tells this write apart from a later one of the very same entry, e.g. a concurrent upload that won
+		String write = UUID.randomUUID().toString();
+		Properties properties = entry.toProperties();
+		properties.setProperty(WRITE, write);
+
+		Path target = pathOf(entry.name);
+		Files.createDirectories(target.getParent());
+		Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				properties.store(out, null);
+			}
+			synchronized (this) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException|RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status == STATUS_ROLLED_BACK) {
+						discard(entry.name, write);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Remove the entry for {@code name}. Inside a transaction, that happens once it commits.
+	 */
+	public void forget(String name) throws IOException {
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			Files.deleteIfExists(pathOf(name));
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				try {
+					Files.deleteIfExists(pathOf(name));
+				} catch (IOException e) {
+					log.warn("Couldn't remove the manifest entry for " + name, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read every entry, one top-level shard directory at a time on {@code executor}. An entry that can't be
+	 * read is logged and left out.
+	 */
+	public List<Entry> readAll(Executor executor) throws IOException {
+
+		if (!Files.isDirectory(root)) {
+			return Collections.emptyList();
+		}
+		List<Path> shards;
+		try (Stream<Path> paths = Files.list(root)) {
+			shards = paths.filter(Files::isDirectory).collect(Collectors.toList());
+		}
+
+		List<CompletableFuture<List<Entry>>> reads = shards.stream()
+			.map(shard -> CompletableFuture.supplyAsync(() -> readShard(shard), executor))
+			.collect(Collectors.toList());
+
+		List<Entry> entries = new ArrayList<>();
+		for (CompletableFuture<List<Entry>> read : reads) {
+			try {
+				entries.addAll(read.join());
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof UncheckedIOException) {
+					throw ((UncheckedIOException) e.getCause()).getCause();
+				}
+				throw e;
+			}
+		}
+		return entries;
+	}
+
+	private List<Entry> readShard(Path shard) {
+
+		try (Stream<Path> paths = Files.walk(shard)) {
+			List<Entry> entries = new ArrayList<>();
+			paths.filter(path -> Files.isRegularFile(path) && !path.getFileName().toString().endsWith(".tmp"))
+				.forEach(path -> {
+					Entry entry = read(path);
+					if (entry != null) {
+						entries.add(entry);
+					}
+				});
+			return entries;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the {@code images/} directory the entries are sharded under
+	 */
+	Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the entry stored at {@code path}, or {@literal null} (logged) if it can't be read
+	 */
+	Entry read(Path path) {
+
+		Properties properties = load(path);
+		if (properties == null) {
+			return null;
+		}
+		if (properties.getProperty(NAME) == null || properties.getProperty(DIGEST) == null) {
+			log.warn("Skipping incomplete manifest entry " + path);
+			return null;
+		}
+		return new Entry(properties.getProperty(NAME), properties.getProperty(DIGEST), properties.getProperty(OWNER));
+	}
+
+	/**
+	 * @return the properties stored at {@code path}, or {@literal null} (logged) if they can't be read
+	 */
+	private Properties load(Path path) {
+
+		Properties properties = new Properties();
+		try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			properties.load(in);
+		} catch (IOException|IllegalArgumentException e) {
+			log.warn("Skipping unreadable manifest entry " + path + ": " + e.getMessage());
+			return null;
+		}
+		return properties;
+	}
+
+	/**
+	 * Roll back a {@link #record(Image)}, unless the entry has been written over since, even with the same
+	 * content. Only the {@code write} that put the file there may take it away again, and no other write can
+	 * land between checking that and deleting it.
+	 */
+	private synchronized void discard(String name, String write) {
+
+		Path path = pathOf(name);
+		if (!Files.exists(path)) {
+			return;
+		}
+		Properties properties = load(path);
+		if (properties != null && write.equals(properties.getProperty(WRITE))) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				log.warn("Couldn't remove the manifest entry for " + name, e);
+			}
+		}
+	}
+
+	private Path pathOf(String name) {
+		String hash = DigestUtils.md5DigestAsHex(name.getBytes(StandardCharsets.UTF_8));
+		return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	/**
+	 * What the manifest knows about an image.
+	 */
+	public static final class Entry {
+
+		private final String name;
+		private final String digest;
+		private final String owner;
+
+		Entry(String name, String digest, String owner) {
+			this.name = name;
+			this.digest = digest;
+			this.owner = owner;
+		}
+
+		static Entry of(Image image) {
+			return new Entry(image.getName(), image.getDigest(),
+				image.getOwner() != null ? image.getOwner().getUsername() : null);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * @return the owner's username, or {@literal null} if the image has none
+		 */
+		public String getOwner() {
+			return owner;
+		}
+
+		private Properties toProperties() {
+			Properties properties = new Properties();
+			properties.setProperty(NAME, name);
+			properties.setProperty(DIGEST, digest);
+			if (owner != null) {
+				properties.setProperty(OWNER, owner);
+			}
+			return properties;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Entry)) {
+				return false;
+			}
+			Entry that = (Entry) other;
+			return name.equals(that.name) && digest.equals(that.digest)
+				&& (owner == null ? that.owner == null : owner.equals(that.owner));
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() * 31 + digest.hashCode();
+		}
+	}
+
+}
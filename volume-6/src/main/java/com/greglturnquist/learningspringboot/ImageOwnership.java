@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+
+/**
+ * Ownership checks for {@link ImageService}'s {@code @PreAuthorize} rules. These live with the service methods
+ * rather than on {@link ImageRepository}, which background jobs use with nobody signed in.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class ImageOwnership {
+
+	private final ImageRepository imageRepository;
+
+	@Autowired
+	public ImageOwnership(ImageRepository imageRepository) {
+		this.imageRepository = imageRepository;
+	}
+
+	/**
+	 * @return whether the image belongs to the user, or doesn't exist (so there's nothing of anyone's to protect)
+	 */
+	public boolean owns(String filename, Authentication authentication) {
+		Image image = imageRepository.findByName(filename);
+		return image == null || isOwner(image, authentication);
+	}
+
+	/**
+	 * @return whether every one of the images that exist belongs to the user
+	 */
+	public boolean ownsAll(Collection<String> filenames, Authentication authentication) {
+		return filenames.isEmpty() || imageRepository.findByNameIn(filenames).stream()
+			.allMatch(image -> isOwner(image, authentication));
+	}
+
+	private static boolean isOwner(Image image, Authentication authentication) {
+		return image.getOwner() != null && authentication != null
+			&& image.getOwner().getUsername().equals(authentication.getName());
+	}
+
+}
@@ -15,13 +15,50 @@
  */
 package com.greglturnquist.learningspringboot;
 
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 /**
  * @author Greg Turnquist
  */
 public interface ImageRepository extends PagingAndSortingRepository<Image, Long> {
 
+	@QueryHints({
+			@QueryHint(name = "org.hibernate.cacheable", value = "true"),
+			@QueryHint(name = "org.hibernate.cacheRegion", value = "imagesByName")})
 	public Image findByName(String name);
 
+	public List<Image> findByNameIn(Collection<String> names);
+
+	/**
+	 * @return {@code [digest, count]} for each of the digests that any image references
+	 */
+	@Query("select i.digest, count(i) from Image i where i.digest in :digests group by i.digest")
+	public List<Object[]> countByDigestIn(@Param("digests") Collection<String> digests);
+
+	public long countByDigest(String digest);
+
+	@Query("select min(i.id) from Image i")
+	public Long findMinId();
+
+	@Query("select max(i.id) from Image i")
+	public Long findMaxId();
+
+	@Query("select new com.greglturnquist.learningspringboot.ImageSummary(i.id, i.name, o.username) " +
+			"from Image i left join i.owner o where i.id > :id")
+	public Slice<ImageSummary> findSummariesAfter(@Param("id") Long id, Pageable pageable);
+
+	@Query("select new com.greglturnquist.learningspringboot.ImageSummary(i.id, i.name, o.username) " +
+			"from Image i left join i.owner o where i.id < :id")
+	public Slice<ImageSummary> findSummariesBefore(@Param("id") Long id, Pageable pageable);
+
 }
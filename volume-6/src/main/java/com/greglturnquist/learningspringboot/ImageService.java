@@ -15,26 +15,44 @@
  */
 package com.greglturnquist.learningspringboot;
 
-import java.io.File;
-import java.io.FileWriter;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.DescriptiveResource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.ResourceLoader;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.repository.query.Param;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
-import org.springframework.util.FileCopyUtils;
-import org.springframework.util.FileSystemUtils;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StopWatch;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
 
 /**
@@ -43,79 +61,367 @@ import org.springframework.web.multipart.MultipartFile;
 @Service
 public class ImageService {
 
-	private static String UPLOAD_ROOT = "upload-dir";
+	private static final Logger log = LoggerFactory.getLogger(ImageService.class);
 
 	private final ImageRepository imageRepository;
-	private final ResourceLoader resourceLoader;
-	private final SimpMessagingTemplate messagingTemplate;
+	private final ImageStorage imageStorage;
+	private final ImageManifest imageManifest;
+	private final ImageEventBroadcaster imageEvents;
 	private final UserRepository userRepository;
+	private final ThumbnailService thumbnailService;
+	private final ImageCache imageCache;
+	private final long maxUploadBytes;
+	private final String contextPath;
 
 	@Autowired
-	public ImageService(ImageRepository imageRepository, ResourceLoader resourceLoader,
-						SimpMessagingTemplate messagingTemplate,
-						UserRepository userRepository) {
+	public ImageService(ImageRepository imageRepository, ImageStorage imageStorage,
+						ImageManifest imageManifest,
+						ImageEventBroadcaster imageEvents,
+						UserRepository userRepository,
+						ThumbnailService thumbnailService,
+						ImageCache imageCache,
+						@Value("${springagram.upload.max-bytes:10485760}") long maxUploadBytes,
+						@Value("${server.context-path:}") String contextPath) {
 
 		this.imageRepository = imageRepository;
-		this.resourceLoader = resourceLoader;
-		this.messagingTemplate = messagingTemplate;
+		this.imageStorage = imageStorage;
+		this.imageManifest = imageManifest;
+		this.imageEvents = imageEvents;
 		this.userRepository = userRepository;
+		this.thumbnailService = thumbnailService;
+		this.imageCache = imageCache;
+		this.maxUploadBytes = maxUploadBytes;
+		this.contextPath = contextPath;
+	}
+
+	/**
+	 * Keyset pagination: the page the cursor points at, or the first page if there is no (valid) cursor. Each
+	 * row comes with its owner's username, all in one query.
+	 */
+	public CursorPage<ImageSummary> findPage(String cursor, int size) {
+
+		String decoded = (cursor != null ? CursorPage.decode(cursor) : null);
+		if (decoded == null) {
+			return findPageAfter(null, size);
+		}
+		long id = Long.parseLong(decoded.substring(1));
+		return decoded.charAt(0) == 'a' ? findPageAfter(id, size) : findPageBefore(id, size);
 	}
 
-	public Page<Image> findPage(Pageable pageable) {
-		return imageRepository.findAll(pageable);
+	/**
+	 * @param id last id of the previous page, or {@literal null} for the first page
+	 */
+	public CursorPage<ImageSummary> findPageAfter(Long id, int size) {
+
+		Slice<ImageSummary> slice = imageRepository.findSummariesAfter(id != null ? id : Long.MIN_VALUE,
+				new PageRequest(0, size, Sort.Direction.ASC, "id"));
+		List<ImageSummary> content = slice.getContent();
+		if (content.isEmpty()) {
+			return new CursorPage<>(content, size, id != null ? CursorPage.before(id + 1) : null, null);
+		}
+		return new CursorPage<>(content, size,
+				id != null ? CursorPage.before(content.get(0).getId()) : null,
+				slice.hasNext() ? CursorPage.after(content.get(content.size() - 1).getId()) : null);
 	}
 
-	public Resource findOneImage(String filename) {
-		return resourceLoader.getResource("file:" + UPLOAD_ROOT + "/" + filename);
+	/**
+	 * @param id first id of the following page
+	 */
+	public CursorPage<ImageSummary> findPageBefore(long id, int size) {
+
+		Slice<ImageSummary> slice = imageRepository.findSummariesBefore(id, new PageRequest(0, size, Sort.Direction.DESC, "id"));
+		if (!slice.hasNext()) {
+			// Reached the beginning. Show a full first page rather than whatever is left over.
+			return findPageAfter(null, size);
+		}
+		List<ImageSummary> content = new ArrayList<>(slice.getContent());
+		Collections.reverse(content);
+		return new CursorPage<>(content, size,
+				CursorPage.before(content.get(0).getId()),
+				CursorPage.after(content.get(content.size() - 1).getId()));
+	}
+
+	public Resource findOneImage(String filename) throws IOException {
+		Image image = imageRepository.findByName(filename);
+		if (image == null) {
+			return new DescriptiveResource("No image named " + filename);
+		}
+		return imageCache.get(image.getDigest(), imageStorage.load(image.getDigest()));
+	}
+
+	/**
+	 * @return the thumbnail, which won't {@link Resource#exists() exist} until it has been rendered
+	 */
+	public Resource findThumbnail(String filename) {
+		Image image = imageRepository.findByName(filename);
+		if (image == null) {
+			return new DescriptiveResource("No image named " + filename);
+		}
+		thumbnailService.request(image.getDigest());
+		return thumbnailService.load(image.getDigest());
 	}
 
+	@Transactional(rollbackFor = IOException.class)
 	public void createImage(MultipartFile file) throws IOException {
 
 		if (!file.isEmpty()) {
-			Files.copy(file.getInputStream(), Paths.get(UPLOAD_ROOT, file.getOriginalFilename()));
-			imageRepository.save(
-				new Image(
-					file.getOriginalFilename(),
-					userRepository.findByUsername(SecurityContextHolder.getContext().getAuthentication().getName())));
-			messagingTemplate.convertAndSend("/topic/newImage", file.getOriginalFilename());
+			saveImage(file.getOriginalFilename(), file.getInputStream());
+		}
+	}
+
+	/**
+	 * Streaming upload: the body is hashed, counted, size-checked and written to its final location in a
+	 * single pass, with no multipart parsing or spooling in between. The {@link Image} row commits together
+	 * with the stored blob; if either fails, neither is kept.
+	 *
+	 * @param contentLength declared length of the content, or -1 if unknown
+	 */
+	@Transactional(rollbackFor = IOException.class)
+	public void createImage(String filename, InputStream content, long contentLength) throws IOException {
+
+		if (contentLength > maxUploadBytes) {
+			throw new MaxUploadSizeExceededException(maxUploadBytes);
+		}
+		saveImage(filename, new SizeLimitedInputStream(content, maxUploadBytes));
+	}
+
+	private void saveImage(String filename, InputStream content) throws IOException {
+
+		if (imageRepository.findByName(filename) != null) {
+			throw new FileAlreadyExistsException(filename);
+		}
+		String digest = imageStorage.store(content);
+		Image image = imageRepository.save(
+			new Image(
+				filename,
+				digest,
+				userRepository.findByUsername(SecurityContextHolder.getContext().getAuthentication().getName())));
+		imageManifest.record(image);
+		ImageDescriptor descriptor = describe(image);
+		afterCommit(() -> {
+			thumbnailService.request(digest);
+			imageEvents.added(descriptor);
+		});
+	}
+
+	/**
+	 * Upload a whole batch in one transaction. The files are written in parallel, the rows go out in JDBC
+	 * batches, and {@link ImageEventBroadcaster} announces them in as few frames as it can. A name that is
+	 * already taken (or given twice) fails the whole batch.
+	 *
+	 * @return the names that were stored
+	 */
+	@Transactional(rollbackFor = IOException.class)
+	public List<String> createImages(List<MultipartFile> files) throws IOException {
+
+		List<MultipartFile> nonEmpty = files.stream()
+			.filter(file -> !file.isEmpty())
+			.collect(Collectors.toList());
+		List<String> names = nonEmpty.stream()
+			.map(MultipartFile::getOriginalFilename)
+			.collect(Collectors.toList());
+		if (names.isEmpty()) {
+			return names;
+		}
+
+		Set<String> taken = imageRepository.findByNameIn(names).stream()
+			.map(Image::getName)
+			.collect(Collectors.toCollection(TreeSet::new));
+		Set<String> seen = new HashSet<>();
+		names.stream().filter(name -> !seen.add(name)).forEach(taken::add);
+		if (!taken.isEmpty()) {
+			throw new FileAlreadyExistsException(String.join(", ", taken));
+		}
+
+		User owner = userRepository.findByUsername(SecurityContextHolder.getContext().getAuthentication().getName());
+		List<String> digests = imageStorage.storeAll(nonEmpty);
+		List<Image> images = new ArrayList<>(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			images.add(new Image(names.get(i), digests.get(i), owner));
+		}
+		List<ImageDescriptor> descriptors = new ArrayList<>(images.size());
+		for (Image image : imageRepository.save(images)) {
+			imageManifest.record(image);
+			descriptors.add(describe(image));
 		}
+
+		afterCommit(() -> {
+			digests.forEach(thumbnailService::request);
+			imageEvents.added(descriptors);
+		});
+		return names;
 	}
 
-	@PreAuthorize("@imageRepository.findByName(#filename)?.owner?.username == authentication?.name or hasRole('ADMIN')")
+	/**
+	 * Only the owner or an admin may delete the image. The row, the manifest entry and the blob's reference go
+	 * together, or not at all.
+	 *
+	 * @throws NoSuchFileException if there is no image by that name
+	 */
+	@PreAuthorize("hasRole('ADMIN') or @imageOwnership.owns(#filename, authentication)")
+	@Transactional(rollbackFor = IOException.class)
 	public void deleteImage(@Param("filename") String filename) throws IOException {
 
 		final Image byName = imageRepository.findByName(filename);
+		if (byName == null) {
+			throw new NoSuchFileException(filename);
+		}
 		imageRepository.delete(byName);
-		Files.deleteIfExists(Paths.get(UPLOAD_ROOT, filename));
-		messagingTemplate.convertAndSend("/topic/deleteImage", filename);
+		imageManifest.forget(filename);
+		boolean released = imageStorage.release(byName.getDigest());
+
+		ImageDescriptor descriptor = describe(byName);
+		afterCommit(() -> {
+			if (released) {
+				forgetBlob(byName.getDigest());
+			}
+			imageEvents.deleted(descriptor);
+		});
+	}
+
+	/**
+	 * Delete a batch in one transaction. Each image is authorized like a single delete, and one the caller
+	 * may not delete fails the whole batch before anything is deleted. Names that don't exist are skipped.
+	 *
+	 * @return the names that were deleted
+	 */
+	@PreAuthorize("hasRole('ADMIN') or @imageOwnership.ownsAll(#filenames, authentication)")
+	@Transactional(rollbackFor = IOException.class)
+	public List<String> deleteImages(@Param("filenames") Collection<String> filenames) throws IOException {
+
+		if (filenames.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<String> deleted = new ArrayList<>(filenames.size());
+		List<ImageDescriptor> descriptors = new ArrayList<>(filenames.size());
+		List<String> released = new ArrayList<>();
+		for (Image image : imageRepository.findByNameIn(filenames)) {
+			imageRepository.delete(image);
+			imageManifest.forget(image.getName());
+			deleted.add(image.getName());
+			descriptors.add(describe(image));
+			if (imageStorage.release(image.getDigest())) {
+				released.add(image.getDigest());
+			}
+		}
+
+		afterCommit(() -> {
+			released.forEach(this::forgetBlob);
+			imageEvents.deleted(descriptors);
+		});
+		return deleted;
+	}
+
+	/**
+	 * Drop what's kept around for a blob that is gone: its cached bytes and its thumbnail.
+	 */
+	private void forgetBlob(String digest) {
+
+		imageCache.evict(digest);
+		try {
+			thumbnailService.delete(digest);
+		} catch (IOException e) {
+			// An orphaned thumbnail is harmless; it gets reused if the same content is uploaded again
+		}
+	}
+
+	private ImageDescriptor describe(Image image) {
+		return new ImageDescriptor(image, contextPath);
+	}
+
+	private static void afterCommit(Runnable action) {
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				action.run();
+			}
+		});
 	}
 
 	/**
-	 * Pre-load some fake images
+	 * Pre-load some fake images, over a wiped storage. Only in the default {@code demo} startup mode; in
+	 * {@code production} mode, {@link ImageIndexRebuilder} picks up what's already stored instead.
 	 *
 	 * @return Spring Boot {@link CommandLineRunner} automatically run after app context is loaded.
 	 */
 	@Bean
+	@ConditionalOnProperty(name = "springagram.startup.mode", havingValue = "demo", matchIfMissing = true)
 	CommandLineRunner setUp(ImageRepository imageRepository, UserRepository userRepository) throws IOException {
 
 		return (args) -> {
-			FileSystemUtils.deleteRecursively(new File(UPLOAD_ROOT));
+			StopWatch timings = new StopWatch("Demo startup");
+			timings.start("wipe storage");
+			imageStorage.deleteAll();
+			timings.stop();
 
-			Files.createDirectory(Paths.get(UPLOAD_ROOT));
+			timings.start("seed");
+			List<User> accounts = createAccounts(userRepository);
+			User greg = accounts.get(0);
+			User rob = accounts.get(1);
 
-			User greg = userRepository.save(new User("greg", "turnquist", "ROLE_ADMIN", "ROLE_USER"));
-			User rob = userRepository.save(new User("rob", "winch", "ROLE_USER"));
+			imageManifest.record(imageRepository.save(new Image("test", imageStorage.store(new ByteArrayInputStream("Test file".getBytes())), greg)));
 
-			FileCopyUtils.copy("Test file", new FileWriter(UPLOAD_ROOT + "/test"));
-			imageRepository.save(new Image("test", greg));
+			imageManifest.record(imageRepository.save(new Image("test2", imageStorage.store(new ByteArrayInputStream("Test file2".getBytes())), greg)));
 
-			FileCopyUtils.copy("Test file2", new FileWriter(UPLOAD_ROOT + "/test2"));
-			imageRepository.save(new Image("test2", greg));
+			imageManifest.record(imageRepository.save(new Image("test3", imageStorage.store(new ByteArrayInputStream("Test file3".getBytes())), rob)));
+			timings.stop();
 
-			FileCopyUtils.copy("Test file3", new FileWriter(UPLOAD_ROOT + "/test3"));
-			imageRepository.save(new Image("test3", rob));
+			log.info(timings.prettyPrint());
 		};
 
 	}
 
+	/**
+	 * There's no sign-up, so these are the only accounts there are.
+	 *
+	 * @return greg and rob, in that order
+	 */
+	static List<User> createAccounts(UserRepository userRepository) {
+
+		return Arrays.asList(
+			userRepository.save(new User("greg", "turnquist", "ROLE_ADMIN", "ROLE_USER")),
+			userRepository.save(new User("rob", "winch", "ROLE_USER")));
+	}
+
+	/**
+	 * Counts bytes as they stream past and fails the upload as soon as it goes over the limit.
+	 */
+	private static class SizeLimitedInputStream extends FilterInputStream {
+
+		private final long limit;
+		private long count;
+
+		SizeLimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				counted(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				counted(n);
+			}
+			return n;
+		}
+
+		private void counted(int n) {
+			count += n;
+			if (count > limit) {
+				throw new MaxUploadSizeExceededException(limit);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+
+/**
+ * Where uploaded image bytes live. {@link ImageService} only ever deals in digests handed out by
+ * {@link #store(InputStream)}, so the layout on disk is entirely up to the implementation.
+ *
+ * @author Greg Turnquist
+ */
+public interface ImageStorage {
+
+	/**
+	 * Store the content, or take another reference on an identical blob that is already stored.
+	 *
+	 * @return the SHA-256 digest (lowercase hex) identifying the content
+	 */
+	String store(InputStream content) throws IOException;
+
+	/**
+	 * {@link #store(InputStream) Store} a whole batch. The content may be written concurrently, but all the
+	 * bookkeeping happens on the calling thread, inside its transaction. If any item fails, none is kept.
+	 *
+	 * @return the digests, in the same order as {@code contents}
+	 */
+	List<String> storeAll(List<? extends InputStreamSource> contents) throws IOException;
+
+	Resource load(String digest);
+
+	/**
+	 * Drop one reference to the blob, removing it once nothing points to it anymore.
+	 *
+	 * @return whether that was the last reference and the blob is gone
+	 * (inside a transaction, the file itself goes once it commits)
+	 */
+	boolean release(String digest) throws IOException;
+
+	/**
+	 * Take {@code references} more references on a blob that is already on disk, but may not be accounted
+	 * for, e.g. when rebuilding the index over storage that outlived the database.
+	 *
+	 * @return whether the blob is there; if it isn't, nothing changes
+	 */
+	boolean adopt(String digest, long references) throws IOException;
+
+	/**
+	 * Wipe every blob, e.g. before loading demo data.
+	 */
+	void deleteAll() throws IOException;
+
+}
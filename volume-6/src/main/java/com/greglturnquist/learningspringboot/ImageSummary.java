@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+/**
+ * Read-only row of the gallery listing, fetched together with its owner's username in a single query.
+ *
+ * @author Greg Turnquist
+ */
+public class ImageSummary {
+
+	private final Long id;
+	private final String name;
+	private final String ownerName;
+
+	public ImageSummary(Long id, String name, String ownerName) {
+		this.id = id;
+		this.name = name;
+		this.ownerName = ownerName;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getOwnerName() {
+		return ownerName;
+	}
+}
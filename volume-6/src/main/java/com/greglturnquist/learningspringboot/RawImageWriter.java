@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * Writes a stored image straight from disk to the client, honoring {@code Range} and {@code If-Range}.
+ *
+ * Images held by the {@link ImageCache} come back as a {@link StreamingResponseBody} that writes them from
+ * memory, whatever their size; Spring MVC runs it on the {@link ImageIoExecutor}. Other large bodies are
+ * handed to Tomcat's sendfile support, so the kernel copies the bytes and the request thread is released as
+ * soon as the headers are set. The rest are streamed from the {@link ImageIoExecutor} too, through
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class RawImageWriter {
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * Same cut-over Tomcat's DefaultServlet uses. Below this, setting up sendfile costs more than it saves.
+	 */
+	private static final long SENDFILE_THRESHOLD = 48 * 1024;
+
+	/**
+	 * Set the status and headers, and work out how the body gets sent.
+	 *
+	 * @return the body still to be written, or {@literal null} if the response is already complete (an
+	 * error, an empty body, or a body Tomcat will sendfile)
+	 */
+	public StreamingResponseBody write(Resource image, String filename, HttpServletRequest request,
+									   HttpServletResponse response) throws IOException {
+
+		final File file = image.getFile();
+		final long length = image.contentLength();
+		final long lastModified = image.lastModified();
+		final String eTag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.ETAG, eTag);
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		response.setContentType(contentType(filename, request));
+
+		long start = 0;
+		long end = length - 1;
+
+		List<HttpRange> ranges = requestedRanges(request, eTag, lastModified);
+		if (ranges.size() == 1) {
+			HttpRange range = ranges.get(0);
+			start = range.getRangeStart(length);
+			if (start >= length) {
+				response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+				response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+				return null;
+			}
+			end = range.getRangeEnd(length);
+			response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+		}
+
+		final long count = end - start + 1;
+		response.setContentLengthLong(count);
+		if (count <= 0) {
+			return null;
+		}
+
+		final long first = start;
+		final long last = end;
+
+		if (image instanceof ImageCache.CachedImage) {
+			ByteBuffer bytes = ((ImageCache.CachedImage) image).getBuffer();
+			return outputStream -> {
+				WritableByteChannel out = Channels.newChannel(outputStream);
+				bytes.position((int) first).limit((int) (last + 1));
+				while (bytes.hasRemaining()) {
+					out.write(bytes);
+				}
+			};
+		}
+
+		if (count >= SENDFILE_THRESHOLD && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, start);
+			request.setAttribute(SENDFILE_END, end + 1);
+			return null;
+		}
+
+		return outputStream -> {
+			WritableByteChannel out = Channels.newChannel(outputStream);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long position = first;
+				while (position <= last) {
+					long transferred = channel.transferTo(position, last + 1 - position, out);
+					if (transferred <= 0) {
+						break; // file was truncated underneath us
+					}
+					position += transferred;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Multiple ranges would need a multipart/byteranges body. RFC 7233 lets us ignore the header instead,
+	 * which is also what we do for a malformed header or a stale {@code If-Range}.
+	 */
+	private static List<HttpRange> requestedRanges(HttpServletRequest request, String eTag, long lastModified) {
+
+		String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+		if (rangeHeader == null || !ifRangeMatches(request, eTag, lastModified)) {
+			return Collections.emptyList();
+		}
+		try {
+			return HttpRange.parseRanges(rangeHeader);
+		} catch (IllegalArgumentException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	private static boolean ifRangeMatches(HttpServletRequest request, String eTag, long lastModified) {
+
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(eTag);
+		}
+		try {
+			return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static String contentType(String filename, HttpServletRequest request) {
+
+		String mimeType = request.getServletContext().getMimeType(filename);
+		return (mimeType != null ? mimeType : MediaType.IMAGE_JPEG_VALUE);
+	}
+
+}
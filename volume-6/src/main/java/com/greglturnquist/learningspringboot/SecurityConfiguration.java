@@ -39,7 +39,8 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
 		http
 			.authorizeRequests()
 				.antMatchers(HttpMethod.GET, "/", "/images/**", "/main.css", "/webjars/**").permitAll()
-				.antMatchers(HttpMethod.POST, "/images").hasRole("USER")
+				.antMatchers(HttpMethod.POST, "/images", "/images/batch").hasRole("USER")
+				.antMatchers(HttpMethod.PUT, "/images/**").hasRole("USER")
 				.antMatchers("/imageMessages/**").permitAll()
 				.and()
 			.formLogin()
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Content-addressed {@link ImageStorage}. Each blob is named after its SHA-256 digest and lives two
+ * directory levels down ({@code ab/cd/abcd...}), so no single directory grows past a few entries no matter
+ * how many images are uploaded. Identical uploads share one blob, tracked by an {@link ImageBlob} row.
+ *
+ * Next to the shard directories, the root holds {@code incoming/}, where uploads are written before they're
+ * moved into place, {@code quarantine/}, where {@link StorageReconciler} moves files nothing references, and
+ * {@link ImageManifest}'s {@code images/}. Thumbnails are derived data and live under their own
+ * {@code springagram.thumbnail.root} instead (see {@link ThumbnailService}).
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class ShardedImageStorage implements ImageStorage, DisposableBean {
+
+	private static final String INCOMING = "incoming";
+	private static final String QUARANTINE = "quarantine";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * A row to lock, without any references yet. Plain JDBC rather than a save, so losing the race to create it
+	 * doesn't touch the persistence context of the caller's transaction.
+	 */
+	private static final String INSERT_UNREFERENCED =
+			"insert into image_blob (digest, size, reference_count) values (?, ?, 0)";
+
+	private final Path root;
+	private final ImageBlobRepository blobRepository;
+	private final JdbcTemplate jdbcTemplate;
+	private final ThreadPoolTaskExecutor writers;
+
+	/**
+	 * Joins the caller's transaction, if any, so blob rows stay locked until the {@link Image} rows referencing
+	 * them commit.
+	 */
+	private final TransactionTemplate transaction;
+
+	private final TransactionTemplate newTransaction;
+
+	@Autowired
+	public ShardedImageStorage(@Value("${springagram.storage.root:upload-dir}") String root,
+							   @Value("${springagram.storage.write-threads:4}") int writeThreads,
+							   @Value("${springagram.threads.virtual:false}") boolean virtualThreads,
+							   ImageBlobRepository blobRepository,
+							   JdbcTemplate jdbcTemplate,
+							   PlatformTransactionManager transactionManager) {
+
+		this.root = Paths.get(root);
+		this.blobRepository = blobRepository;
+		this.jdbcTemplate = jdbcTemplate;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.newTransaction = new TransactionTemplate(transactionManager);
+		this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		this.writers = new ThreadPoolTaskExecutor();
+		this.writers.setCorePoolSize(writeThreads);
+		this.writers.setMaxPoolSize(writeThreads);
+		this.writers.setThreadNamePrefix("storage-");
+		if (virtualThreads) {
+			this.writers.setThreadFactory(VirtualThreads.factory("storage-"));
+		}
+		this.writers.initialize();
+	}
+
+	@Override
+	public String store(InputStream content) throws IOException {
+
+		Staged staged = write(content);
+		return commit(staged.tmp, staged.digest, staged.size);
+	}
+
+	@Override
+	public List<String> storeAll(List<? extends InputStreamSource> contents) throws IOException {
+
+		List<CompletableFuture<Staged>> writes = contents.stream()
+			.map(content -> CompletableFuture.supplyAsync(() -> {
+				try (InputStream in = content.getInputStream()) {
+					return write(in);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, writers))
+			.collect(Collectors.toList());
+
+		// Wait for every write, even after one fails, so nothing is left half-written behind us
+		List<Staged> staged = new ArrayList<>(writes.size());
+		RuntimeException failure = null;
+		for (CompletableFuture<Staged> write : writes) {
+			try {
+				staged.add(write.join());
+			} catch (CompletionException e) {
+				failure = (e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e);
+			}
+		}
+
+		// Lock blob rows in one global order, so two batches sharing content can't deadlock on each other
+		List<Staged> ordered = new ArrayList<>(staged);
+		ordered.sort(Comparator.comparing(item -> item.digest));
+		int committed = 0;
+		try {
+			if (failure instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) failure).getCause();
+			} else if (failure != null) {
+				throw failure;
+			}
+			for (Staged item : ordered) {
+				commit(item.tmp, item.digest, item.size);
+				committed++;
+			}
+		} finally {
+			for (Staged item : ordered.subList(committed, ordered.size())) {
+				Files.deleteIfExists(item.tmp);
+			}
+		}
+		return staged.stream().map(item -> item.digest).collect(Collectors.toList());
+	}
+
+	/**
+	 * Copy the content into a temp file under {@code incoming/}, hashing it on the way.
+	 */
+	private Staged write(InputStream content) throws IOException {
+
+		Path incoming = Files.createDirectories(root.resolve(INCOMING));
+		Path tmp = incoming.resolve(UUID.randomUUID().toString());
+
+		MessageDigest sha256 = newDigest();
+		try (InputStream in = new DigestInputStream(content, sha256)) {
+			long size = Files.copy(in, tmp);
+			return new Staged(tmp, toHex(sha256.digest()), size);
+		} catch (IOException|RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Move a fully written temp file into its content address, or discard it if that blob is already stored.
+	 */
+	private String commit(Path tmp, String digest, long size) throws IOException {
+
+		return inTransaction(() -> {
+			ImageBlob blob = lock(digest, size);
+			Path target = pathOf(digest);
+			if (Files.exists(target)) {
+				Files.delete(tmp);
+			} else {
+				Files.createDirectories(target.getParent());
+				Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+				discardOnRollback(digest, size);
+			}
+			blob.setReferenceCount(blob.getReferenceCount() + 1);
+			blobRepository.save(blob);
+			return digest;
+		});
+	}
+
+	/**
+	 * Lock the blob's row until the current transaction ends, first inserting it without any references if
+	 * there's none yet. The insert is part of the current transaction, so it takes no second connection; it
+	 * holds up anyone else inserting the same digest until it commits, after which their insert fails and they
+	 * lock the committed row instead. Every change to a blob, on disk or in its count, happens under this lock,
+	 * so the database serializes them across threads and nodes alike.
+	 */
+	private ImageBlob lock(String digest, long size) {
+
+		for (int attempt = 0; attempt < 10; attempt++) {
+			ImageBlob blob = blobRepository.findAndLock(digest);
+			if (blob != null) {
+				return blob;
+			}
+			insertUnreferenced(digest, size);
+		}
+		throw new CannotAcquireLockException("Blob " + digest + " kept disappearing before it could be locked");
+	}
+
+	/**
+	 * Insert the blob's row unless someone else got there first. The insert runs under a savepoint, on the
+	 * current transaction's connection: some databases (PostgreSQL, for one) refuse every further statement in a
+	 * transaction once one has failed, unless it's rolled back to a savepoint.
+	 */
+	private void insertUnreferenced(String digest, long size) {
+
+		jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+			Savepoint savepoint = connection.setSavepoint();
+			try {
+				jdbcTemplate.update(INSERT_UNREFERENCED, digest, size);
+			} catch (DuplicateKeyException e) {
+				// Someone else created it first, which is just as good
+				connection.rollback(savepoint);
+				return null;
+			}
+			connection.releaseSavepoint(savepoint);
+			return null;
+		});
+	}
+
+	/**
+	 * When storing as part of a transaction (e.g. together with its {@link Image} row) and that transaction
+	 * rolls back, so does the reference, and the row too if this transaction created it. Take the freshly moved
+	 * file along unless someone else has committed a reference to it in the meantime.
+	 */
+	private void discardOnRollback(String digest, long size) {
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCompletion(int status) {
+				if (status == STATUS_ROLLED_BACK) {
+					// The row may have gone with the rollback, so lock one all the same while deciding
+					newTransaction.execute(tx -> deleteIfUnreferenced(lock(digest, size)));
+				}
+			}
+		});
+	}
+
+	/**
+	 * The blob's file has to survive a rollback, so it goes after the commit, unless the digest has been stored
+	 * again by then.
+	 */
+	private void deleteOnCommit(String digest) {
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				// A blob without a row is left alone, since whoever removed the row already took care of it
+				newTransaction.execute(status -> {
+					ImageBlob blob = blobRepository.findAndLock(digest);
+					return blob != null ? deleteIfUnreferenced(blob) : null;
+				});
+			}
+		});
+	}
+
+	/**
+	 * Drop a locked blob whose row is down to zero references, row and file together.
+	 */
+	private Void deleteIfUnreferenced(ImageBlob blob) {
+
+		if (blob.getReferenceCount() == 0) {
+			blobRepository.delete(blob);
+			try {
+				Files.deleteIfExists(pathOf(blob.getDigest()));
+			} catch (IOException e) {
+				// Nothing points at it; it's just wasted space until the digest shows up again
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Resource load(String digest) {
+		return new FileSystemResource(pathOf(digest).toFile());
+	}
+
+	/**
+	 * A blob that runs out of references keeps its row, at zero, until the transaction commits. That way an
+	 * upload of the same content waits on the row lock instead of racing the file's deletion.
+	 */
+	@Override
+	public boolean release(String digest) throws IOException {
+
+		return inTransaction(() -> {
+			ImageBlob blob = blobRepository.findAndLock(digest);
+			if (blob == null) {
+				return true;
+			}
+			blob.setReferenceCount(Math.max(blob.getReferenceCount() - 1, 0));
+			blobRepository.save(blob);
+			if (blob.getReferenceCount() > 0) {
+				return false;
+			}
+			deleteOnCommit(digest);
+			return true;
+		});
+	}
+
+	@Override
+	public boolean adopt(String digest, long references) throws IOException {
+
+		Path path = pathOf(digest);
+		if (!Files.isRegularFile(path)) {
+			return false;
+		}
+		long size = Files.size(path);
+		return inTransaction(() -> {
+			ImageBlob blob = lock(digest, size);
+			if (!Files.isRegularFile(path)) {
+				// Released and deleted while we waited for the row
+				deleteOnCommit(digest);
+				return false;
+			}
+			blob.setReferenceCount(blob.getReferenceCount() + references);
+			blobRepository.save(blob);
+			return true;
+		});
+	}
+
+	/**
+	 * How {@link #reconcile(String, ToLongFunction)} left a blob.
+	 */
+	enum Reconciled {
+		CONSISTENT, REPAIRED, QUARANTINED, MISSING
+	}
+
+	/**
+	 * Bring a blob's bookkeeping in line with the number of {@link Image}s that reference it. The reference
+	 * count is corrected, a blob row without a file is dropped if nothing references it, and a file nothing
+	 * references is moved to {@code quarantine/} rather than deleted. A file that's referenced but gone can't be
+	 * fixed from here.
+	 *
+	 * @param countImages counts the images referencing a digest. It's only called once the blob's row is
+	 * locked, so no upload or delete of the blob can be halfway done and missing from the count.
+	 */
+	Reconciled reconcile(String digest, ToLongFunction<String> countImages) throws IOException {
+
+		return inTransaction(() -> {
+			Path path = pathOf(digest);
+			ImageBlob blob = blobRepository.findAndLock(digest);
+			if (blob == null) {
+				if (!Files.isRegularFile(path)) {
+					// Nothing to lock and nothing to undo; only worth reporting
+					return countImages.applyAsLong(digest) > 0 ? Reconciled.MISSING : Reconciled.CONSISTENT;
+				}
+				// A file without a row. Lock one all the same, so an upload of this content waits for us.
+				blob = lock(digest, Files.size(path));
+			}
+			long images = countImages.applyAsLong(digest);
+			if (!Files.isRegularFile(path)) {
+				if (images > 0) {
+					return Reconciled.MISSING;
+				}
+				blobRepository.delete(blob);
+				return Reconciled.REPAIRED;
+			}
+			if (images == 0) {
+				blobRepository.delete(blob);
+				quarantine(digest);
+				return Reconciled.QUARANTINED;
+			}
+			if (blob.getReferenceCount() == images) {
+				return Reconciled.CONSISTENT;
+			}
+			blob.setReferenceCount(images);
+			blobRepository.save(blob);
+			return Reconciled.REPAIRED;
+		});
+	}
+
+	private void quarantine(String digest) throws IOException {
+
+		Path path = pathOf(digest);
+		Path target = getQuarantine().resolve(root.relativize(path));
+		Files.createDirectories(target.getParent());
+		Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return the directory blobs are sharded under, next to {@code incoming/} and {@code quarantine/}
+	 */
+	Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return where files that nothing references are moved to, under their path relative to {@link #getRoot()}
+	 */
+	Path getQuarantine() {
+		return root.resolve(QUARANTINE);
+	}
+
+	/**
+	 * @return where uploads are written before they're hashed and moved into place
+	 */
+	Path getIncoming() {
+		return root.resolve(INCOMING);
+	}
+
+	@Override
+	public void deleteAll() throws IOException {
+
+		FileSystemUtils.deleteRecursively(root.toFile());
+		blobRepository.deleteAll();
+		Files.createDirectories(root);
+	}
+
+	@Override
+	public void destroy() {
+		writers.shutdown();
+	}
+
+	private Path pathOf(String digest) {
+		return root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+	}
+
+	/**
+	 * Run file and JDBC work in {@link #transaction}, letting the {@link IOException}s through as they are.
+	 */
+	private <T> T inTransaction(IoCallback<T> work) throws IOException {
+		try {
+			return transaction.execute(status -> {
+				try {
+					return work.run();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	@FunctionalInterface
+	private interface IoCallback<T> {
+		T run() throws IOException;
+	}
+
+	/**
+	 * Content that has been written and hashed, but isn't in its content address yet.
+	 */
+	private static final class Staged {
+
+		private final Path tmp;
+		private final String digest;
+		private final long size;
+
+		Staged(Path tmp, String digest, long size) {
+			this.tmp = tmp;
+			this.digest = digest;
+			this.size = size;
+		}
+	}
+
+}
@@ -15,10 +15,16 @@
  */
 package com.greglturnquist.learningspringboot;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
@@ -26,26 +32,70 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
 
 /**
+ * Looks users up through {@link UserRepository}, keeping recent results in the {@value #CACHE} cache (bounded
+ * and expired by {@code ehcache.xml}, cleared whenever a {@link User} is saved or deleted).
+ *
  * @author Greg Turnquist
  */
 @Component
 public class SpringDataUserDetailsService implements UserDetailsService {
 
+	static final String CACHE = "userDetails";
+
+	/**
+	 * There are only a handful of distinct roles, so every user shares the same authority objects.
+	 */
+	private static final ConcurrentMap<String, GrantedAuthority> AUTHORITIES = new ConcurrentHashMap<>();
+
 	private final UserRepository repository;
+	private final Cache cache;
 
 	@Autowired
-	public SpringDataUserDetailsService(UserRepository repository) {
+	public SpringDataUserDetailsService(UserRepository repository, CacheManager cacheManager) {
 		this.repository = repository;
+		this.cache = cacheManager.getCache(CACHE);
 	}
 
 	@Override
 	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-		User user = repository.findByUsername(username);
-		return new org.springframework.security.core.userdetails.User(
-				user.getUsername(), user.getPassword(),
-				Stream.of(user.getRoles())
-					.map(SimpleGrantedAuthority::new)
-					.collect(Collectors.toList()));
+
+		CachedUser cached = cache.get(username, CachedUser.class);
+		if (cached == null) {
+			User user = repository.findByUsername(username);
+			if (user == null) {
+				throw new UsernameNotFoundException(username);
+			}
+			cached = new CachedUser(user);
+			cache.put(username, cached);
+		}
+		return cached.toUserDetails();
+	}
+
+	private static GrantedAuthority authority(String role) {
+		return AUTHORITIES.computeIfAbsent(role, SimpleGrantedAuthority::new);
+	}
+
+	/**
+	 * Spring Security erases the password of the {@link UserDetails} it authenticated, so the cache holds this
+	 * snapshot and hands out a fresh copy each time.
+	 */
+	private static final class CachedUser {
+
+		private final String username;
+		private final String password;
+		private final List<GrantedAuthority> authorities;
+
+		CachedUser(User user) {
+			this.username = user.getUsername();
+			this.password = user.getPassword();
+			this.authorities = Stream.of(user.getRoles())
+				.map(SpringDataUserDetailsService::authority)
+				.collect(Collectors.toList());
+		}
+
+		UserDetails toUserDetails() {
+			return new org.springframework.security.core.userdetails.User(username, password, authorities);
+		}
 	}
 
 }
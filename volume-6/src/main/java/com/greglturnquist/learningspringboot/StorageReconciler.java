@@ -0,0 +1,558 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds and fixes what a crash between the file and database halves of an upload or delete leaves behind:
+ * blobs nothing references, blob rows with the wrong reference count or no file, and {@link ImageManifest}
+ * entries that don't match their {@link Image}. It also clears out {@code incoming/} files abandoned
+ * mid-upload.
+ *
+ * Every run walks the shard directories in parallel, but only lists the leaf directories that were modified
+ * since the last run (all of them on the first run after a start). Their contents are checked against the
+ * database in batches of at most {@code batch-size} files. A mismatch is only acted on when the next run still
+ * finds it, so an upload or delete that is in flight isn't mistaken for one. Unreferenced files go to
+ * {@code quarantine/} instead of being deleted. An image whose blob is gone can't be repaired; it's logged and
+ * counted.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+@ConditionalOnProperty(name = "springagram.reconcile.enabled", matchIfMissing = true)
+public class StorageReconciler implements PublicMetrics, ApplicationListener<ApplicationReadyEvent>,
+		DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(StorageReconciler.class);
+
+	private static final Pattern SHARD = Pattern.compile("[0-9a-f]{2}");
+	private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private final ShardedImageStorage storage;
+	private final ImageManifest manifest;
+	private final ImageRepository imageRepository;
+	private final ImageBlobRepository blobRepository;
+	private final Optional<ImageIndexRebuilder> rebuilder;
+	private final long intervalMillis;
+	private final int batchSize;
+	private final long incomingMaxAgeMillis;
+	private final ThreadPoolTaskExecutor executor;
+	private final ThreadPoolTaskScheduler scheduler;
+
+	/**
+	 * Set on shutdown, so a run in progress stops after its current batch.
+	 */
+	private volatile boolean stopping;
+
+	/**
+	 * Last-modified time of each leaf directory as of its last complete check.
+	 */
+	private final Map<Path, FileTime> checked = new ConcurrentHashMap<>();
+
+	/**
+	 * Mismatches found by the last run, and the directories they are in (which get checked again regardless).
+	 */
+	private volatile Set<String> suspects = Collections.emptySet();
+	private volatile Set<Path> suspectDirectories = Collections.emptySet();
+	private volatile Set<String> missingBlobs = Collections.emptySet();
+
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong directoriesScanned = new AtomicLong();
+	private final AtomicLong directoriesSkipped = new AtomicLong();
+	private final AtomicLong filesScanned = new AtomicLong();
+	private final AtomicLong blobsRepaired = new AtomicLong();
+	private final AtomicLong blobsQuarantined = new AtomicLong();
+	private final AtomicLong entriesRepaired = new AtomicLong();
+	private final AtomicLong entriesQuarantined = new AtomicLong();
+	private final AtomicLong incomingRemoved = new AtomicLong();
+
+	private volatile long lastMillis;
+	private volatile long lastFiles;
+
+	@Autowired
+	public StorageReconciler(ShardedImageStorage storage, ImageManifest manifest,
+							 ImageRepository imageRepository, ImageBlobRepository blobRepository,
+							 Optional<ImageIndexRebuilder> rebuilder,
+							 @Value("${springagram.reconcile.interval-ms:60000}") long intervalMillis,
+							 @Value("${springagram.reconcile.threads:4}") int threads,
+							 @Value("${springagram.reconcile.batch-size:500}") int batchSize,
+							 @Value("${springagram.io.timeout-ms:300000}") long incomingMaxAgeMillis) {
+
+		this.storage = storage;
+		this.manifest = manifest;
+		this.imageRepository = imageRepository;
+		this.blobRepository = blobRepository;
+		this.rebuilder = rebuilder;
+		this.intervalMillis = intervalMillis;
+		this.batchSize = batchSize;
+		this.incomingMaxAgeMillis = incomingMaxAgeMillis;
+
+		this.executor = new ThreadPoolTaskExecutor();
+		this.executor.setCorePoolSize(threads);
+		this.executor.setMaxPoolSize(threads);
+		this.executor.setThreadNamePrefix("reconcile-");
+		this.executor.setWaitForTasksToCompleteOnShutdown(true);
+		this.executor.setAwaitTerminationSeconds(SHUTDOWN_TIMEOUT_SECONDS);
+		this.executor.initialize();
+
+		// Let a run that's underway finish its batch while the repositories it uses are still around
+		this.scheduler = new ThreadPoolTaskScheduler();
+		this.scheduler.setThreadNamePrefix("reconciler-");
+		this.scheduler.setWaitForTasksToCompleteOnShutdown(true);
+		this.scheduler.setAwaitTerminationSeconds(SHUTDOWN_TIMEOUT_SECONDS);
+		this.scheduler.initialize();
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		scheduler.scheduleWithFixedDelay(this::reconcile, intervalMillis);
+	}
+
+	synchronized void reconcile() {
+
+		if (rebuilder.isPresent() && !rebuilder.get().isRebuilt()) {
+			return; // Until the index is back, everything on disk looks unreferenced
+		}
+
+		long start = System.nanoTime();
+		Run run = new Run();
+		boolean complete = false;
+		try {
+			for (List<Leaf> batch : batches(changedLeaves(storage.getRoot(), run))) {
+				stopIfShuttingDown();
+				reconcileBlobs(batch, run);
+				markChecked(batch);
+			}
+			for (List<Leaf> batch : batches(changedLeaves(manifest.getRoot(), run))) {
+				stopIfShuttingDown();
+				reconcileEntries(batch, run);
+				markChecked(batch);
+			}
+			removeAbandonedUploads();
+			complete = true;
+		} catch (IOException|RuntimeException e) {
+			if (!stopping) {
+				log.warn("Reconciliation stopped early, picking up again next run", e);
+			}
+		}
+
+		if (!complete) {
+			// What wasn't checked this time is still suspect
+			run.suspects.addAll(suspects);
+			run.suspectDirectories.addAll(suspectDirectories);
+			run.missingBlobs.addAll(missingBlobs);
+		}
+		suspects = run.suspects;
+		suspectDirectories = run.suspectDirectories;
+		missingBlobs = run.missingBlobs;
+
+		runs.incrementAndGet();
+		lastFiles = run.files;
+		lastMillis = (System.nanoTime() - start) / 1000000;
+		if (run.fixed > 0) {
+			log.info("Reconciled " + run.files + " files in " + lastMillis + "ms: fixed " + run.fixed + ", " +
+				suspects.size() + " left to confirm");
+		}
+	}
+
+	private void stopIfShuttingDown() {
+		if (stopping) {
+			throw new IllegalStateException("Shutting down");
+		}
+	}
+
+	/**
+	 * List every leaf directory under {@code root} that changed since it was last checked or holds a suspect,
+	 * one top-level shard at a time on the executor, in digest order.
+	 */
+	private List<Leaf> changedLeaves(Path root, Run run) throws IOException {
+
+		if (!Files.isDirectory(root)) {
+			return Collections.emptyList();
+		}
+		List<Path> shards;
+		try (Stream<Path> paths = Files.list(root)) {
+			shards = paths
+				.filter(path -> Files.isDirectory(path) && SHARD.matcher(path.getFileName().toString()).matches())
+				.collect(Collectors.toList());
+		}
+
+		List<CompletableFuture<List<Leaf>>> scans = shards.stream()
+			.map(shard -> CompletableFuture.supplyAsync(() -> scanShard(shard), executor))
+			.collect(Collectors.toList());
+
+		List<Leaf> leaves = new ArrayList<>();
+		for (CompletableFuture<List<Leaf>> scan : scans) {
+			try {
+				leaves.addAll(scan.join());
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof UncheckedIOException) {
+					throw ((UncheckedIOException) e.getCause()).getCause();
+				}
+				throw e;
+			}
+		}
+		for (Leaf leaf : leaves) {
+			run.files += leaf.files.size();
+		}
+		leaves.sort(Comparator.comparing(leaf -> leaf.prefix));
+		return leaves;
+	}
+
+	private List<Leaf> scanShard(Path shard) {
+
+		Set<Path> rescan = suspectDirectories;
+		List<Leaf> leaves = new ArrayList<>();
+		try (Stream<Path> directories = Files.list(shard)) {
+			for (Path directory : (Iterable<Path>) directories::iterator) {
+				if (!Files.isDirectory(directory)) {
+					continue;
+				}
+				// Read before listing: a change made while listing shows up as a change next run
+				FileTime modified = Files.getLastModifiedTime(directory);
+				if (modified.equals(checked.get(directory)) && !rescan.contains(directory)) {
+					directoriesSkipped.incrementAndGet();
+					continue;
+				}
+				try (Stream<Path> files = Files.list(directory)) {
+					leaves.add(new Leaf(directory, modified, files.filter(Files::isRegularFile).collect(Collectors.toList())));
+				}
+				directoriesScanned.incrementAndGet();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		filesScanned.addAndGet(leaves.stream().mapToLong(leaf -> leaf.files.size()).sum());
+		return leaves;
+	}
+
+	/**
+	 * Check every blob in the batch, whether it has a file, a row, or both.
+	 */
+	private void reconcileBlobs(List<Leaf> batch, Run run) {
+
+		Map<String, Path> directories = new HashMap<>();
+		Set<String> stored = new HashSet<>();
+		for (Leaf leaf : batch) {
+			for (Path file : leaf.files) {
+				String digest = file.getFileName().toString();
+				if (DIGEST.matcher(digest).matches()) {
+					stored.add(digest);
+					directories.put(digest, leaf.directory);
+				}
+			}
+		}
+		// One query for the whole batch. Leaves come in digest order, so the batch spans a narrow key range.
+		Map<String, Leaf> leaves = batch.stream().collect(Collectors.toMap(leaf -> leaf.prefix, leaf -> leaf));
+		Map<String, ImageBlob> blobs = new HashMap<>();
+		String from = batch.get(0).prefix;
+		String to = batch.get(batch.size() - 1).prefix + "g"; // past every hex digit
+		for (ImageBlob blob : blobRepository.findInLeaves(from, to, leaves.keySet())) {
+			blobs.put(blob.getDigest(), blob);
+			directories.putIfAbsent(blob.getDigest(), leaves.get(blob.getDigest().substring(0, 4)).directory);
+		}
+
+		Map<String, Long> references = countReferences(directories.keySet());
+		List<String> confirmed = new ArrayList<>();
+		for (Map.Entry<String, Path> candidate : directories.entrySet()) {
+			String digest = candidate.getKey();
+			long images = references.getOrDefault(digest, 0L);
+			ImageBlob blob = blobs.get(digest);
+			boolean consistent = stored.contains(digest) && images > 0 && blob != null
+				&& blob.getReferenceCount() == images;
+			if (!consistent && run.suspect("blob:" + digest, candidate.getValue())) {
+				confirmed.add(digest);
+			}
+		}
+		if (confirmed.isEmpty()) {
+			return;
+		}
+
+		// Row locks are taken one blob at a time in digest order, the same order batch uploads take them in
+		Collections.sort(confirmed);
+		for (String digest : confirmed) {
+			ShardedImageStorage.Reconciled outcome;
+			try {
+				outcome = storage.reconcile(digest, imageRepository::countByDigest);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			switch (outcome) {
+				case REPAIRED:
+					blobsRepaired.incrementAndGet();
+					run.fixed("blob:" + digest);
+					break;
+				case QUARANTINED:
+					blobsQuarantined.incrementAndGet();
+					run.fixed("blob:" + digest);
+					log.warn("Moved blob " + digest + " to quarantine, nothing references it");
+					break;
+				case MISSING:
+					run.missingBlobs.add(digest);
+					if (!missingBlobs.contains(digest)) {
+						log.error("Blob " + digest + " is missing; the images referencing it can't be served");
+					}
+					break;
+				default:
+					run.suspects.remove("blob:" + digest);
+			}
+		}
+	}
+
+	/**
+	 * Check every manifest entry in the batch against its image.
+	 */
+	private void reconcileEntries(List<Leaf> batch, Run run) throws IOException {
+
+		Map<Path, ImageManifest.Entry> entries = new HashMap<>();
+		Map<Path, Path> directories = new HashMap<>();
+		for (Leaf leaf : batch) {
+			for (Path file : leaf.files) {
+				if (!file.getFileName().toString().endsWith(".tmp")) {
+					entries.put(file, manifest.read(file));
+					directories.put(file, leaf.directory);
+				}
+			}
+		}
+		Map<String, Image> images = findImages(entries.values().stream()
+			.filter(entry -> entry != null)
+			.map(ImageManifest.Entry::getName)
+			.collect(Collectors.toList()));
+
+		for (Map.Entry<Path, ImageManifest.Entry> candidate : entries.entrySet()) {
+			Path path = candidate.getKey();
+			ImageManifest.Entry entry = candidate.getValue();
+			Image image = (entry != null ? images.get(entry.getName()) : null);
+			if (image != null && entry.equals(ImageManifest.Entry.of(image))) {
+				continue;
+			}
+			if (!run.suspect("entry:" + path, directories.get(path))) {
+				continue;
+			}
+
+			// Confirmed; look again, the image may have just been (re)created
+			entry = manifest.read(path);
+			image = (entry != null ? imageRepository.findByName(entry.getName()) : null);
+			if (image == null) {
+				Path target = storage.getQuarantine().resolve(storage.getRoot().relativize(path));
+				Files.createDirectories(target.getParent());
+				Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+				entriesQuarantined.incrementAndGet();
+				log.warn("Moved manifest entry " + path + " to quarantine, there's no image " +
+					(entry != null ? entry.getName() : "for it"));
+			} else {
+				manifest.record(image);
+				entriesRepaired.incrementAndGet();
+			}
+			run.fixed("entry:" + path);
+		}
+	}
+
+	/**
+	 * Whatever is still in {@code incoming/} after the longest an upload may take was left by one that died.
+	 */
+	private void removeAbandonedUploads() throws IOException {
+
+		Path incoming = storage.getIncoming();
+		if (!Files.isDirectory(incoming)) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - incomingMaxAgeMillis;
+		try (Stream<Path> files = Files.list(incoming)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				if (Files.getLastModifiedTime(file).toMillis() < cutoff && Files.deleteIfExists(file)) {
+					incomingRemoved.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private Map<String, Long> countReferences(Collection<String> digests) {
+
+		Map<String, Long> references = new HashMap<>();
+		for (List<String> chunk : chunks(new ArrayList<>(digests))) {
+			for (Object[] row : imageRepository.countByDigestIn(chunk)) {
+				references.put((String) row[0], ((Number) row[1]).longValue());
+			}
+		}
+		return references;
+	}
+
+	private Map<String, Image> findImages(List<String> names) {
+
+		Map<String, Image> images = new HashMap<>();
+		for (List<String> chunk : chunks(names)) {
+			for (Image image : imageRepository.findByNameIn(chunk)) {
+				images.put(image.getName(), image);
+			}
+		}
+		return images;
+	}
+
+	private <T> List<List<T>> chunks(List<T> items) {
+
+		List<List<T>> chunks = new ArrayList<>();
+		for (int i = 0; i < items.size(); i += batchSize) {
+			chunks.add(items.subList(i, Math.min(i + batchSize, items.size())));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Group leaves into batches of about {@code batchSize} files; a leaf is never split.
+	 */
+	private List<List<Leaf>> batches(List<Leaf> leaves) {
+
+		List<List<Leaf>> batches = new ArrayList<>();
+		List<Leaf> batch = new ArrayList<>();
+		int files = 0;
+		for (Leaf leaf : leaves) {
+			if (!batch.isEmpty() && files + leaf.files.size() > batchSize) {
+				batches.add(batch);
+				batch = new ArrayList<>();
+				files = 0;
+			}
+			batch.add(leaf);
+			files += Math.max(1, leaf.files.size());
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	private void markChecked(List<Leaf> batch) {
+		for (Leaf leaf : batch) {
+			checked.put(leaf.directory, leaf.modified);
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		long millis = lastMillis;
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Number>("reconcile.runs", runs.get()));
+		metrics.add(new Metric<Number>("reconcile.last.millis", millis));
+		metrics.add(new Metric<Number>("reconcile.last.files", lastFiles));
+		metrics.add(new Metric<Number>("reconcile.last.filesPerSecond", millis == 0 ? 0 : lastFiles * 1000 / millis));
+		metrics.add(new Metric<Number>("reconcile.directories.scanned", directoriesScanned.get()));
+		metrics.add(new Metric<Number>("reconcile.directories.skipped", directoriesSkipped.get()));
+		metrics.add(new Metric<Number>("reconcile.files.scanned", filesScanned.get()));
+		metrics.add(new Metric<Number>("reconcile.suspects", suspects.size()));
+		metrics.add(new Metric<Number>("reconcile.blobs.repaired", blobsRepaired.get()));
+		metrics.add(new Metric<Number>("reconcile.blobs.quarantined", blobsQuarantined.get()));
+		metrics.add(new Metric<Number>("reconcile.blobs.missing", missingBlobs.size()));
+		metrics.add(new Metric<Number>("reconcile.entries.repaired", entriesRepaired.get()));
+		metrics.add(new Metric<Number>("reconcile.entries.quarantined", entriesQuarantined.get()));
+		metrics.add(new Metric<Number>("reconcile.incoming.removed", incomingRemoved.get()));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		stopping = true;
+		scheduler.shutdown();
+		executor.shutdown();
+	}
+
+	/**
+	 * A leaf directory's files, as listed when it was last modified at {@code modified}.
+	 */
+	private static final class Leaf {
+
+		private final Path directory;
+		private final String prefix;
+		private final FileTime modified;
+		private final List<Path> files;
+
+		Leaf(Path directory, FileTime modified, List<Path> files) {
+			this.directory = directory;
+			this.prefix = directory.getParent().getFileName().toString() + directory.getFileName();
+			this.modified = modified;
+			this.files = files;
+		}
+	}
+
+	/**
+	 * What one run has found so far.
+	 */
+	private final class Run {
+
+		private final Set<String> suspects = new HashSet<>();
+		private final Set<Path> suspectDirectories = new HashSet<>();
+		private final Set<String> missingBlobs = new HashSet<>();
+		private long files;
+		private int fixed;
+
+		/**
+		 * Note a mismatch.
+		 *
+		 * @return whether the last run found it too, and it's time to act on it
+		 */
+		boolean suspect(String key, Path directory) {
+			this.suspects.add(key);
+			this.suspectDirectories.add(directory);
+			return StorageReconciler.this.suspects.contains(key);
+		}
+
+		void fixed(String key) {
+			this.suspects.remove(key);
+			this.fixed++;
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+/**
+ * Renders gallery-sized thumbnails off the request path. Work is queued to a bounded pool sized to the
+ * number of cores; when the queue is full the request is dropped and picked up again the next time someone
+ * asks for that thumbnail.
+ *
+ * Thumbnails are keyed by content digest, so identical uploads share one. An image with more than
+ * {@code springagram.thumbnail.max-pixels} is decoded at a reduced resolution, since a few KB of PNG or JPEG
+ * can declare dimensions that would take gigabytes to decode in full.
+ *
+ * They're files of their own under {@code springagram.thumbnail.root}, sharded like the blobs they're made
+ * from but kept apart from {@link ShardedImageStorage}'s root, whose every file the reconciler accounts for.
+ *
+ * @author Greg Turnquist
+ */
+@Service
+public class ThumbnailService implements PublicMetrics, DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+	private final ImageStorage imageStorage;
+	private final Path root;
+	private final int size;
+	private final long maxPixels;
+	private final ThreadPoolTaskExecutor executor;
+
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	private final Set<String> undecodable = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong subsampled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+	private final AtomicLong maxMillis = new AtomicLong();
+
+	@Autowired
+	public ThumbnailService(ImageStorage imageStorage,
+							@Value("${springagram.thumbnail.root:thumbnail-dir}") String root,
+							@Value("${springagram.thumbnail.size:150}") int size,
+							@Value("${springagram.thumbnail.max-pixels:16777216}") long maxPixels,
+							@Value("${springagram.thumbnail.threads:0}") int threads,
+							@Value("${springagram.thumbnail.queue-capacity:1000}") int queueCapacity) {
+
+		this.imageStorage = imageStorage;
+		this.root = Paths.get(root);
+		this.size = size;
+		this.maxPixels = maxPixels;
+
+		int poolSize = (threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		this.executor = new ThreadPoolTaskExecutor();
+		this.executor.setCorePoolSize(poolSize);
+		this.executor.setMaxPoolSize(poolSize);
+		this.executor.setQueueCapacity(queueCapacity);
+		this.executor.setThreadNamePrefix("thumbnail-");
+		this.executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		this.executor.initialize();
+	}
+
+	/**
+	 * Queue a thumbnail for the blob unless it already exists or is on its way.
+	 */
+	public void request(String digest) {
+
+		if (undecodable.contains(digest) || Files.exists(pathOf(digest)) || !pending.add(digest)) {
+			return;
+		}
+		try {
+			executor.execute(() -> render(digest));
+		} catch (RejectedExecutionException e) {
+			pending.remove(digest);
+			rejected.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the thumbnail, which may not {@link Resource#exists() exist} yet
+	 */
+	public Resource load(String digest) {
+		return new FileSystemResource(pathOf(digest).toFile());
+	}
+
+	public void delete(String digest) throws IOException {
+		undecodable.remove(digest);
+		Files.deleteIfExists(pathOf(digest));
+	}
+
+	private void render(String digest) {
+
+		long start = System.nanoTime();
+		try (InputStream in = imageStorage.load(digest).getInputStream()) {
+			BufferedImage original = read(in);
+			if (original == null) {
+				undecodable.add(digest); // not a format ImageIO can read; the gallery keeps showing the original
+				skipped.incrementAndGet();
+				return;
+			}
+			Path target = pathOf(digest);
+			Files.createDirectories(target.getParent());
+			Path tmp = Files.createTempFile(target.getParent(), digest, ".tmp");
+			ImageIO.write(scale(original), "jpg", tmp.toFile());
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+			completed.incrementAndGet();
+		} catch (IOException|RuntimeException e) {
+			failed.incrementAndGet();
+			log.warn("Couldn't create thumbnail for " + digest, e);
+		} finally {
+			pending.remove(digest);
+			long millis = (System.nanoTime() - start) / 1000000;
+			totalMillis.addAndGet(millis);
+			maxMillis.accumulateAndGet(millis, Math::max);
+		}
+	}
+
+	/**
+	 * Like {@link ImageIO#read(InputStream)}, but checks the declared dimensions first, and only decodes every
+	 * n-th pixel in each direction if there would be more than {@link #maxPixels} of them.
+	 *
+	 * @return {@literal null} if no reader understands the format
+	 */
+	private BufferedImage read(InputStream in) throws IOException {
+
+		ImageInputStream input = ImageIO.createImageInputStream(in);
+		if (input == null) {
+			return null;
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+				if (pixels > maxPixels) {
+					int step = (int) Math.ceil(Math.sqrt((double) pixels / maxPixels));
+					param.setSourceSubsampling(step, step, 0, 0);
+					subsampled.incrementAndGet();
+				}
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private BufferedImage scale(BufferedImage original) {
+
+		double ratio = Math.min(1.0, (double) size / Math.max(original.getWidth(), original.getHeight()));
+		int width = Math.max(1, (int) Math.round(original.getWidth() * ratio));
+		int height = Math.max(1, (int) Math.round(original.getHeight() * ratio));
+
+		BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = thumbnail.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(original, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return thumbnail;
+	}
+
+	private Path pathOf(String digest) {
+		return root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest + ".jpg");
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		long processed = completed.get() + skipped.get() + failed.get();
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Number>("thumbnails.queue.depth", executor.getThreadPoolExecutor().getQueue().size()));
+		metrics.add(new Metric<Number>("thumbnails.active", executor.getActiveCount()));
+		metrics.add(new Metric<Number>("thumbnails.completed", completed.get()));
+		metrics.add(new Metric<Number>("thumbnails.skipped", skipped.get()));
+		metrics.add(new Metric<Number>("thumbnails.subsampled", subsampled.get()));
+		metrics.add(new Metric<Number>("thumbnails.failed", failed.get()));
+		metrics.add(new Metric<Number>("thumbnails.rejected", rejected.get()));
+		metrics.add(new Metric<Number>("thumbnails.processing.mean", processed == 0 ? 0 : totalMillis.get() / processed));
+		metrics.add(new Metric<Number>("thumbnails.processing.max", maxMillis.get()));
+		return metrics;
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+
+}
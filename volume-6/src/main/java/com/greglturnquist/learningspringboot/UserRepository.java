@@ -15,6 +15,10 @@
  */
 package com.greglturnquist.learningspringboot;
 
+import javax.persistence.QueryHint;
+
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 /**
@@ -22,5 +26,34 @@ import org.springframework.data.repository.CrudRepository;
  */
 public interface UserRepository extends CrudRepository<User, Long> {
 
+	@QueryHints({
+			@QueryHint(name = "org.hibernate.cacheable", value = "true"),
+			@QueryHint(name = "org.hibernate.cacheRegion", value = "usersByUsername")})
 	User findByUsername(String username);
+
+	// Any change to a user, including a rename, drops the cached UserDetails
+
+	@Override
+	@CacheEvict(cacheNames = SpringDataUserDetailsService.CACHE, allEntries = true)
+	<S extends User> S save(S user);
+
+	@Override
+	@CacheEvict(cacheNames = SpringDataUserDetailsService.CACHE, allEntries = true)
+	<S extends User> Iterable<S> save(Iterable<S> users);
+
+	@Override
+	@CacheEvict(cacheNames = SpringDataUserDetailsService.CACHE, allEntries = true)
+	void delete(Long id);
+
+	@Override
+	@CacheEvict(cacheNames = SpringDataUserDetailsService.CACHE, allEntries = true)
+	void delete(User user);
+
+	@Override
+	@CacheEvict(cacheNames = SpringDataUserDetailsService.CACHE, allEntries = true)
+	void delete(Iterable<? extends User> users);
+
+	@Override
+	@CacheEvict(cacheNames = SpringDataUserDetailsService.CACHE, allEntries = true)
+	void deleteAll();
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 21 virtual threads, reached by reflection so the code base can stay on Java 8. Only used when
+ * {@code springagram.threads.virtual} is on (see the {@code virtual-threads} profile); asking for them on an
+ * older JVM fails fast.
+ *
+ * @author Greg Turnquist
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return whether this JVM has virtual threads ({@code Thread.ofVirtual()}, Java 21 and later)
+	 */
+	static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return a factory for virtual threads named {@code namePrefix0}, {@code namePrefix1}, ...
+	 */
+	static ThreadFactory factory(String namePrefix) {
+		if (!isSupported()) {
+			throw new IllegalStateException("Virtual threads need Java 21 or later, but this is Java "
+				+ System.getProperty("java.version"));
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't create virtual threads", e);
+		}
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread for every task
+	 */
+	static Executor threadPerTaskExecutor(String namePrefix) {
+		ThreadFactory threads = factory(namePrefix);
+		return task -> threads.newThread(task).start();
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.coyote.AbstractProtocol;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Hands every Tomcat request to a virtual thread of its own instead of the connector's fixed pool, and runs the
+ * WebSocket client channels' pools on virtual threads. The other I/O pools ({@link ImageIoExecutor},
+ * {@link ShardedImageStorage}) pick up the same setting themselves.
+ *
+ * @author Greg Turnquist
+ */
+@Configuration
+@ConditionalOnProperty("springagram.threads.virtual")
+public class VirtualThreadsConfiguration {
+
+	private static final List<String> CHANNEL_EXECUTORS =
+		Arrays.asList("clientInboundChannelExecutor", "clientOutboundChannelExecutor");
+
+	@Bean
+	EmbeddedServletContainerCustomizer virtualThreadRequestHandling() {
+		return container -> {
+			if (container instanceof TomcatEmbeddedServletContainerFactory) {
+				((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector ->
+					((AbstractProtocol<?>) connector.getProtocolHandler())
+						.setExecutor(VirtualThreads.threadPerTaskExecutor("http-")));
+			}
+		};
+	}
+
+	/**
+	 * Spring 4.2 only lets {@link WebSocketConfiguration} size the channel pools, not hand them an executor of
+	 * its own. So the pools it creates get a virtual thread factory here, before they start. They stay just as
+	 * bounded; their workers just don't each hold an OS thread while they block on a slow client.
+	 */
+	@Bean
+	static BeanPostProcessor virtualThreadChannelExecutors() {
+		return new BeanPostProcessor() {
+
+			@Override
+			public Object postProcessBeforeInitialization(Object bean, String beanName) {
+				if (bean instanceof ThreadPoolTaskExecutor && CHANNEL_EXECUTORS.contains(beanName)) {
+					String threadNamePrefix = beanName.substring(0, beanName.length() - "Executor".length()) + "-";
+					((ThreadPoolTaskExecutor) bean).setThreadFactory(VirtualThreads.factory(threadNamePrefix));
+				}
+				return bean;
+			}
+
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				return bean;
+			}
+		};
+	}
+
+}
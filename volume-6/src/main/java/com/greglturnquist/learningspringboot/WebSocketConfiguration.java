@@ -15,22 +15,83 @@
  */
 package com.greglturnquist.learningspringboot;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.AbstractWebSocketMessageBrokerConfigurer;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
 /**
+ * By default {@code /topic} is served by an in-memory broker, which only reaches browsers connected to this
+ * node. With {@code springagram.broker.relay.enabled=true}, {@code /topic} traffic is relayed through an
+ * external STOMP broker instead, so every node connected to it sees every event.
+ *
+ * Messages from and to clients are handled on two dedicated, bounded thread pools. A client that can't take
+ * its messages within the send-time limit, or lets too much pile up in its send buffer, is disconnected (and
+ * counted by {@link WebSocketSessionMonitor}) instead of tying up an outbound thread.
+ *
  * @author Greg Turnquist
  */
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfiguration extends AbstractWebSocketMessageBrokerConfigurer {
 
+	@Value("${springagram.broker.relay.enabled:false}")
+	private boolean relayEnabled;
+
+	@Value("${springagram.broker.relay.host:localhost}")
+	private String relayHost;
+
+	@Value("${springagram.broker.relay.port:61613}")
+	private int relayPort;
+
+	@Value("${springagram.broker.relay.login:guest}")
+	private String relayLogin;
+
+	@Value("${springagram.broker.relay.passcode:guest}")
+	private String relayPasscode;
+
+	@Value("${springagram.websocket.inbound.threads:0}")
+	private int inboundThreads;
+
+	@Value("${springagram.websocket.inbound.queue-capacity:1000}")
+	private int inboundQueueCapacity;
+
+	@Value("${springagram.websocket.outbound.threads:0}")
+	private int outboundThreads;
+
+	@Value("${springagram.websocket.outbound.queue-capacity:10000}")
+	private int outboundQueueCapacity;
+
+	@Value("${springagram.websocket.send-time-limit-ms:5000}")
+	private int sendTimeLimit;
+
+	@Value("${springagram.websocket.send-buffer-size-limit:262144}")
+	private int sendBufferSizeLimit;
+
+	@Value("${springagram.websocket.message-size-limit:65536}")
+	private int messageSizeLimit;
+
+	@Autowired
+	private WebSocketSessionMonitor webSocketSessionMonitor;
+
 	@Override
 	public void configureMessageBroker(MessageBrokerRegistry registry) {
-		registry.enableSimpleBroker("/topic"); // prefix to target the broker
+		if (relayEnabled) {
+			registry.enableStompBrokerRelay("/topic") // prefix to target the external broker
+				.setRelayHost(relayHost)
+				.setRelayPort(relayPort)
+				.setClientLogin(relayLogin)
+				.setClientPasscode(relayPasscode)
+				.setSystemLogin(relayLogin)
+				.setSystemPasscode(relayPasscode);
+		} else {
+			registry.enableSimpleBroker("/topic"); // prefix to target the broker
+		}
 		registry.setApplicationDestinationPrefixes("/app"); // prefix to target application endpoints
 	}
 
@@ -39,5 +100,34 @@ public class WebSocketConfiguration extends AbstractWebSocketMessageBrokerConfig
 		registry.addEndpoint("/imageMessages").withSockJS();
 	}
 
+	@Override
+	public void configureClientInboundChannel(ChannelRegistration registration) {
+		int threads = poolSize(inboundThreads);
+		registration.taskExecutor()
+			.corePoolSize(threads).maxPoolSize(threads).queueCapacity(inboundQueueCapacity);
+	}
+
+	@Override
+	public void configureClientOutboundChannel(ChannelRegistration registration) {
+		int threads = poolSize(outboundThreads);
+		registration.taskExecutor()
+			.corePoolSize(threads).maxPoolSize(threads).queueCapacity(outboundQueueCapacity);
+	}
+
+	@Override
+	public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+		registration
+			.setSendTimeLimit(sendTimeLimit)
+			.setSendBufferSizeLimit(sendBufferSizeLimit)
+			.setMessageSizeLimit(messageSizeLimit)
+			.addDecoratorFactory(webSocketSessionMonitor);
+	}
+
+	/**
+	 * 0 means twice the number of cores, same as Spring's own default.
+	 */
+	private static int poolSize(int threads) {
+		return (threads > 0 ? threads : Runtime.getRuntime().availableProcessors() * 2);
+	}
 
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.learningspringboot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+
+/**
+ * Watches WebSocket sessions for clients that stopped reading. When a client can't keep up with the
+ * send-time or send-buffer limit set in {@link WebSocketConfiguration}, Spring closes it with
+ * {@link CloseStatus#SESSION_NOT_RELIABLE}. These evictions are counted, along with sessions and how backed
+ * up the client inbound and outbound channels are.
+ *
+ * Spring only checks those limits when the next message for the session comes along, and closing a stalled
+ * session means sending it a close frame, which blocks just like the send that stalled. Tomcat would wait 20
+ * seconds on each, holding two outbound threads, so its blocking send timeout is cut down to the send-time
+ * limit as well. A session Tomcat gives up on that way counts as evicted too.
+ *
+ * @author Greg Turnquist
+ */
+@Component
+public class WebSocketSessionMonitor implements WebSocketHandlerDecoratorFactory, PublicMetrics {
+
+	private static final Logger log = LoggerFactory.getLogger(WebSocketSessionMonitor.class);
+
+	static final String TOMCAT_BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+	private static final String SEND_TIMED_OUT = WebSocketSessionMonitor.class.getName() + ".SEND_TIMED_OUT";
+
+	private final BeanFactory beanFactory;
+	private final long sendTimeLimit;
+
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong closed = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * The channel executors are looked up when metrics are read. Injecting them would make this depend on the
+	 * broker configuration it is itself part of.
+	 */
+	@Autowired
+	public WebSocketSessionMonitor(BeanFactory beanFactory,
+								   @Value("${springagram.websocket.send-time-limit-ms:5000}") long sendTimeLimit) {
+		this.beanFactory = beanFactory;
+		this.sendTimeLimit = sendTimeLimit;
+	}
+
+	@Override
+	public WebSocketHandler decorate(WebSocketHandler handler) {
+
+		return new WebSocketHandlerDecorator(handler) {
+
+			@Override
+			public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+				opened.incrementAndGet();
+				if (session instanceof NativeWebSocketSession) {
+					javax.websocket.Session nativeSession =
+							((NativeWebSocketSession) session).getNativeSession(javax.websocket.Session.class);
+					if (nativeSession != null) {
+						nativeSession.getUserProperties().put(TOMCAT_BLOCKING_SEND_TIMEOUT, sendTimeLimit);
+					}
+				}
+				super.afterConnectionEstablished(session);
+			}
+
+			@Override
+			public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+				if (isSendTimeout(exception)) {
+					session.getAttributes().put(SEND_TIMED_OUT, Boolean.TRUE);
+				}
+				super.handleTransportError(session, exception);
+			}
+
+			@Override
+			public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+				closed.incrementAndGet();
+				if (closeStatus.getCode() == CloseStatus.SESSION_NOT_RELIABLE.getCode()
+						|| session.getAttributes().containsKey(SEND_TIMED_OUT)) {
+					evicted.incrementAndGet();
+					log.info("Evicted slow WebSocket session " + session.getId() + " (" + session.getRemoteAddress() + ")");
+				}
+				super.afterConnectionClosed(session, closeStatus);
+			}
+		};
+	}
+
+	private static boolean isSendTimeout(Throwable exception) {
+
+		for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+			if (cause instanceof TimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Number>("websocket.sessions.current", opened.get() - closed.get()));
+		metrics.add(new Metric<Number>("websocket.sessions.opened", opened.get()));
+		metrics.add(new Metric<Number>("websocket.sessions.evicted", evicted.get()));
+		addExecutorMetrics(metrics, "websocket.inbound", "clientInboundChannelExecutor");
+		addExecutorMetrics(metrics, "websocket.outbound", "clientOutboundChannelExecutor");
+		return metrics;
+	}
+
+	private void addExecutorMetrics(Collection<Metric<?>> metrics, String prefix, String beanName) {
+
+		ThreadPoolTaskExecutor executor = beanFactory.getBean(beanName, ThreadPoolTaskExecutor.class);
+		metrics.add(new Metric<Number>(prefix + ".active", executor.getActiveCount()));
+		metrics.add(new Metric<Number>(prefix + ".queue.depth", executor.getThreadPoolExecutor().getQueue().size()));
+		metrics.add(new Metric<Number>(prefix + ".completed", executor.getThreadPoolExecutor().getCompletedTaskCount()));
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.Type;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.simp.stomp.Reactor2TcpStompClient;
+import org.springframework.messaging.simp.stomp.StompBrokerRelayMessageHandler;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+public class BrokerRelayTests {
+
+	private int port;
+
+	private ConfigurableApplicationContext brokerNode;
+
+	private ConfigurableApplicationContext otherNode;
+
+	private Reactor2TcpStompClient client;
+
+	private ThreadPoolTaskScheduler scheduler;
+
+	private StompSession session;
+
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+	@Before
+	public void setUp() throws Exception {
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		brokerNode = start("broker-node", "--spring.profiles.active=embedded-broker");
+		otherNode = start("other-node", "--springagram.broker.relay.enabled=true");
+		awaitRelay(brokerNode);
+		awaitRelay(otherNode);
+
+		// Subscribe straight at the broker, as any node's relay does on behalf of its browsers
+		scheduler = new ThreadPoolTaskScheduler();
+		scheduler.afterPropertiesSet();
+		client = new Reactor2TcpStompClient("localhost", port);
+		client.setTaskScheduler(scheduler);
+		session = client.connect(new StompSessionHandlerAdapter() {}).get(10, TimeUnit.SECONDS);
+		session.setAutoReceipt(true);
+
+		CountDownLatch subscribed = new CountDownLatch(1);
+		session.subscribe(ImageEventBroadcaster.NEW_IMAGE, new StompFrameHandler() {
+
+			@Override
+			public Type getPayloadType(StompHeaders headers) {
+				return byte[].class;
+			}
+
+			@Override
+			public void handleFrame(StompHeaders headers, Object payload) {
+				received.add(new String((byte[]) payload));
+			}
+		}).addReceiptTask(subscribed::countDown);
+		assertThat(subscribed.await(10, TimeUnit.SECONDS), is(true));
+	}
+
+	@After
+	public void tearDown() {
+		if (session != null) {
+			session.disconnect();
+		}
+		if (client != null) {
+			client.shutdown();
+		}
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		// The node hosting the broker goes last, so the other one isn't left reconnecting to nothing
+		if (otherNode != null) {
+			otherNode.close();
+		}
+		if (brokerNode != null) {
+			brokerNode.close();
+		}
+	}
+
+	@Test
+	public void eventsFromEitherNodeReachSubscribersOfTheSharedBroker() throws Exception {
+
+		announce(otherNode, 1L);
+		assertThat(received.poll(10, TimeUnit.SECONDS), containsString("image-1.jpg"));
+
+		announce(brokerNode, 2L);
+		assertThat(received.poll(10, TimeUnit.SECONDS), containsString("image-2.jpg"));
+	}
+
+	/**
+	 * A full node of its own: web server, database and storage, sharing only the broker port with the other.
+	 */
+	private ConfigurableApplicationContext start(String name, String... args) {
+
+		String[] common = {
+			"--server.port=0",
+			"--spring.datasource.url=jdbc:h2:mem:" + name + ";DB_CLOSE_ON_EXIT=FALSE",
+			"--spring.jmx.enabled=false",
+			"--spring.devtools.restart.enabled=false",
+			"--spring.devtools.livereload.enabled=false",
+			"--springagram.storage.root=build/broker-relay-tests/" + name,
+			"--springagram.thumbnail.root=build/broker-relay-tests/" + name + "-thumbnails",
+			"--springagram.reconcile.enabled=false",
+			"--springagram.broker.relay.port=" + port
+		};
+		String[] all = new String[common.length + args.length];
+		System.arraycopy(common, 0, all, 0, common.length);
+		System.arraycopy(args, 0, all, common.length, args.length);
+		return new SpringApplicationBuilder(LearningSpringBootVideoApplication.class).run(all);
+	}
+
+	private static void awaitRelay(ConfigurableApplicationContext node) throws InterruptedException {
+
+		StompBrokerRelayMessageHandler relay = node.getBean(StompBrokerRelayMessageHandler.class);
+		for (int i = 0; i < 100 && !relay.isBrokerAvailable(); i++) {
+			Thread.sleep(100);
+		}
+		assertThat(relay.isBrokerAvailable(), is(true));
+	}
+
+	private static void announce(ConfigurableApplicationContext node, Long id) {
+
+		Image image = new Image("image-" + id + ".jpg", "digest-" + id, null);
+		image.setId(id);
+		ImageEventBroadcaster broadcaster = node.getBean(ImageEventBroadcaster.class);
+		broadcaster.added(new ImageDescriptor(image, ""));
+		broadcaster.flush();
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"spring.jpa.properties.hibernate.generate_statistics=true",
+	"springagram.reconcile.enabled=false" // its queries would land in the same statistics
+})
+public class HibernateCacheTests {
+
+	private static final String IMAGE_REGION = Image.class.getName();
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private ImageRepository imageRepository;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private HibernateCacheMetrics cacheMetrics;
+
+	private Statistics statistics;
+
+	@Before
+	public void setUp() {
+		statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	@Test
+	public void repeatedLookupByNameIsServedFromTheCaches() {
+
+		String name = name();
+		imageRepository.save(new Image(name, "digest", userRepository.findByUsername("greg")));
+		imageRepository.findByName(name);
+		statistics.clear();
+
+		assertThat(imageRepository.findByName(name), is(notNullValue()));
+
+		assertThat(statistics.getQueryCacheHitCount(), is(1L));
+		assertThat(statistics.getQueryExecutionCount(), is(0L));
+		assertThat(statistics.getSecondLevelCacheStatistics(IMAGE_REGION).getHitCount(), is(1L));
+	}
+
+	@Test
+	public void repeatedLookupByUsernameIsServedFromTheCaches() {
+
+		userRepository.findByUsername("rob");
+		statistics.clear();
+
+		assertThat(userRepository.findByUsername("rob"), is(notNullValue()));
+
+		assertThat(statistics.getQueryCacheHitCount(), is(1L));
+		assertThat(statistics.getQueryExecutionCount(), is(0L));
+		assertThat(statistics.getSecondLevelCacheStatistics(User.class.getName()).getHitCount(), is(1L));
+	}
+
+	@Test
+	public void deletedImageIsNotFoundFromTheCache() {
+
+		String name = name();
+		Image image = imageRepository.save(new Image(name, "digest", null));
+		imageRepository.findByName(name);
+		imageRepository.findByName(name);
+
+		imageRepository.delete(image);
+		statistics.clear();
+
+		assertThat(imageRepository.findByName(name), is(nullValue()));
+		assertThat(statistics.getQueryCacheHitCount(), is(0L));
+		assertThat(statistics.getQueryCacheMissCount(), is(1L));
+	}
+
+	@Test
+	public void savedImageReplacesACachedEmptyResult() {
+
+		String name = name();
+		assertThat(imageRepository.findByName(name), is(nullValue()));
+		assertThat(imageRepository.findByName(name), is(nullValue()));
+
+		imageRepository.save(new Image(name, "digest", null));
+		statistics.clear();
+
+		assertThat(imageRepository.findByName(name), is(notNullValue()));
+		assertThat(statistics.getQueryCacheMissCount(), is(1L));
+	}
+
+	@Test
+	public void renamedUserIsNotFoundUnderTheOldName() {
+
+		String username = "user-" + UUID.randomUUID();
+		User user = userRepository.save(new User(username, "password", "ROLE_USER"));
+		userRepository.findByUsername(username);
+		userRepository.findByUsername(username);
+
+		user.setUsername(username + "-renamed");
+		userRepository.save(user);
+		statistics.clear();
+
+		assertThat(userRepository.findByUsername(username), is(nullValue()));
+		assertThat(userRepository.findByUsername(username + "-renamed").getId(), is(user.getId()));
+		assertThat(statistics.getQueryCacheMissCount(), is(2L));
+	}
+
+	@Test
+	public void regionStatisticsArePublishedAsMetrics() {
+
+		String name = name();
+		imageRepository.save(new Image(name, "digest", null));
+		imageRepository.findByName(name);
+		imageRepository.findByName(name);
+
+		Map<String, Number> metrics = cacheMetrics.metrics().stream()
+				.collect(Collectors.toMap(Metric::getName, metric -> (Number) metric.getValue()));
+		SecondLevelCacheStatistics region = statistics.getSecondLevelCacheStatistics(IMAGE_REGION);
+		long hits = region.getHitCount();
+		long misses = region.getMissCount();
+
+		assertThat(hits, is(greaterThan(0L)));
+		assertThat(metrics.get("hibernate.cache.Image.hits"), is(hits));
+		assertThat(metrics.get("hibernate.cache.Image.misses"), is(misses));
+		assertThat(metrics.get("hibernate.cache.Image.puts"), is(region.getPutCount()));
+		assertThat(metrics.get("hibernate.cache.Image.hitRatio"), is((double) hits / (hits + misses)));
+		assertThat(metrics.get("hibernate.cache.Image.size"), is(region.getElementCountInMemory()));
+		assertThat(metrics.get("hibernate.cache.imagesByName.hits"), is(notNullValue()));
+	}
+
+	private static String name() {
+		return UUID.randomUUID() + ".jpg";
+	}
+
+}
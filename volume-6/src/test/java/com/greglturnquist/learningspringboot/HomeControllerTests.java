@@ -0,0 +1,397 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.fileUpload;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.flash;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.Filter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.request.RequestPostProcessor;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"spring.jpa.properties.hibernate.generate_statistics=true",
+	"springagram.reconcile.enabled=false", // its queries would land in the same statistics
+	"springagram.upload.max-bytes=64"
+})
+public class HomeControllerTests {
+
+	private static final RequestPostProcessor GREG = user("greg").roles("USER");
+
+	@Autowired
+	private WebApplicationContext context;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private Filter springSecurityFilterChain;
+
+	@Autowired
+	private ImageService imageService;
+
+	@Autowired
+	private ImageRepository imageRepository;
+
+	@Autowired
+	private ImageBlobRepository blobRepository;
+
+	@Autowired
+	private ImageStorage imageStorage;
+
+	private MockMvc mvc;
+
+	private Statistics statistics;
+
+	@Before
+	public void setUp() {
+		mvc = MockMvcBuilders.webAppContextSetup(context).addFilters(springSecurityFilterChain).build();
+		statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void indexPageIsRenderedWithASingleQuery() throws Exception {
+
+		statistics.clear();
+
+		mvc.perform(get("/").param("size", "3")).andExpect(status().isOk());
+
+		assertThat(statistics.getPrepareStatementCount(), is(1L));
+	}
+
+	@Test
+	public void pagesFollowEachOtherByIdAndLeadBack() throws Exception {
+
+		CursorPage<ImageSummary> first = page(null);
+		assertThat(first.hasPrevious(), is(false));
+		assertThat(first.hasNext(), is(true));
+
+		CursorPage<ImageSummary> second = page(first.getNext());
+		Long lastOfFirst = first.getContent().get(first.getContent().size() - 1).getId();
+		assertThat(ids(second), everyItem(greaterThan(lastOfFirst)));
+		assertThat(second.hasPrevious(), is(true));
+
+		assertThat(ids(page(second.getPrevious())), is(ids(first)));
+	}
+
+	@Test
+	public void pagerLinksAreRenderedHiddenWhenThereIsNoSuchPage() throws Exception {
+
+		String html = mvc.perform(get("/").param("size", "1000"))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+
+		assertThat(html, containsString("<li id=\"prev\" hidden=\"hidden\">"));
+		assertThat(html, containsString("<li id=\"next\" hidden=\"hidden\">"));
+	}
+
+	@Test
+	public void unknownCursorShowsTheFirstPage() throws Exception {
+		assertThat(ids(page("not-a-cursor")), is(ids(page(null))));
+	}
+
+	@Test
+	public void rangeIsServedAsPartialContent() throws Exception {
+
+		MvcResult result = mvc.perform(get("/images/test/raw").header(HttpHeaders.RANGE, "bytes=5-"))
+				.andExpect(status().isPartialContent())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 5-8/9"))
+				.andReturn();
+		mvc.perform(asyncDispatch(result));
+
+		assertThat(result.getResponse().getContentAsString(), is("file"));
+	}
+
+	@Test
+	public void rangePastTheEndIsNotSatisfiable() throws Exception {
+
+		mvc.perform(get("/images/test/raw").header(HttpHeaders.RANGE, "bytes=9-"))
+				.andExpect(status().isRequestedRangeNotSatisfiable())
+				.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */9"));
+	}
+
+	@Test
+	public void staleIfRangeGetsTheWholeImage() throws Exception {
+
+		MvcResult result = mvc.perform(get("/images/test/raw")
+					.header(HttpHeaders.RANGE, "bytes=5-")
+					.header(HttpHeaders.IF_RANGE, "\"stale\""))
+				.andExpect(status().isOk())
+				.andReturn();
+		mvc.perform(asyncDispatch(result));
+
+		assertThat(result.getResponse().getContentAsString(), is("Test file"));
+	}
+
+	@Test
+	public void originalIsServedUntilTheThumbnailIsRendered() throws Exception {
+
+		// The demo images aren't really images, so they never get a thumbnail
+		MvcResult result = mvc.perform(get("/images/test/thumb")).andExpect(status().isOk()).andReturn();
+		mvc.perform(asyncDispatch(result));
+
+		assertThat(result.getResponse().getContentAsString(), is("Test file"));
+	}
+
+	@Test
+	public void renderedThumbnailIsServedInsteadOfTheOriginal() throws Exception {
+
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png", png);
+		String name = name();
+		SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("greg", null, "ROLE_USER"));
+		imageService.createImage(new MockMultipartFile("file", name, "image/png", png.toByteArray()));
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!imageService.findThumbnail(name).exists()) {
+			assertThat("thumbnail rendered in time", System.currentTimeMillis() < deadline, is(true));
+			Thread.sleep(10);
+		}
+
+		MvcResult result = mvc.perform(get("/images/" + name + "/thumb")).andExpect(status().isOk()).andReturn();
+		mvc.perform(asyncDispatch(result));
+
+		BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(result.getResponse().getContentAsByteArray()));
+		assertThat(thumbnail.getWidth(), is(4));
+		assertThat(result.getResponse().getContentAsByteArray(), is(not(png.toByteArray())));
+	}
+
+	@Test
+	public void uploadOverTheDeclaredLimitIsRefused() throws Exception {
+
+		String name = name();
+
+		upload(put("/images/" + name).content(new byte[65]))
+				.andExpect(status().isPayloadTooLarge());
+
+		assertThat(imageRepository.findByName(name), is(nullValue()));
+	}
+
+	@Test(expected = MaxUploadSizeExceededException.class)
+	public void uploadOfUnknownLengthIsCutOffAtTheLimit() throws Exception {
+
+		SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("greg", null, "ROLE_USER"));
+
+		imageService.createImage(name(), new ByteArrayInputStream(new byte[65]), -1);
+	}
+
+	@Test
+	public void sharedBlobIsKeptUntilItsLastImageIsDeleted() throws Exception {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+		String first = name();
+		String second = name();
+		upload(put("/images/" + first).content(content)).andExpect(status().isCreated());
+		upload(put("/images/" + second).content(content)).andExpect(status().isCreated());
+		String digest = imageRepository.findByName(first).getDigest();
+		assertThat(imageRepository.findByName(second).getDigest(), is(digest));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(2L));
+
+		mvc.perform(delete("/images/" + first).with(GREG).with(csrf())).andExpect(status().is3xxRedirection());
+
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+		assertThat(imageStorage.load(digest).exists(), is(true));
+
+		mvc.perform(delete("/images/" + second).with(GREG).with(csrf())).andExpect(status().is3xxRedirection());
+
+		assertThat(blobRepository.exists(digest), is(false));
+		assertThat(imageStorage.load(digest).exists(), is(false));
+	}
+
+	@Test
+	public void singleDeleteOfSomeoneElsesImageIsDenied() throws Exception {
+
+		String digest = imageRepository.findByName("test").getDigest();
+		long references = blobRepository.findOne(digest).getReferenceCount();
+		SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("rob", null, "ROLE_USER"));
+
+		try {
+			imageService.deleteImage("test");
+			fail("rob doesn't own test");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+
+		assertThat(imageRepository.findByName("test"), is(notNullValue()));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(references));
+	}
+
+	@Test
+	public void batchDeleteWithSomeoneElsesImageDeletesNothing() throws Exception {
+
+		String gregs = name();
+		upload(put("/images/" + gregs).content(new byte[1])).andExpect(status().isCreated());
+		SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("rob", null, "ROLE_USER"));
+
+		try {
+			imageService.deleteImages(Arrays.asList(gregs, "test"));
+			fail("rob doesn't own either image");
+		} catch (AccessDeniedException e) {
+			// expected
+		}
+
+		assertThat(imageRepository.findByName(gregs), is(notNullValue()));
+		assertThat(imageRepository.findByName("test"), is(notNullValue()));
+	}
+
+	@Test
+	public void repositoryDeletesWithNobodySignedIn() throws Exception {
+
+		String name = name();
+		Image image = imageRepository.save(new Image(name, "digest", null));
+		SecurityContextHolder.clearContext();
+
+		imageRepository.delete(image);
+
+		assertThat(imageRepository.findByName(name), is(nullValue()));
+	}
+
+	@Test
+	public void singleDeleteOfAnUnknownImageSaysSo() throws Exception {
+
+		String name = name();
+
+		mvc.perform(delete("/images/" + name).with(GREG).with(csrf()))
+				.andExpect(status().is3xxRedirection())
+				.andExpect(flash().attribute("flash.message", "Failed to delete " + name + " => couldn't find it"));
+	}
+
+	@Test
+	public void batchIsUploadedAndDeletedTogether() throws Exception {
+
+		String first = name();
+		String second = name();
+
+		MvcResult created = mvc.perform(fileUpload("/images/batch")
+					.file(file(first))
+					.file(file(second))
+					.with(GREG).with(csrf()))
+				.andExpect(status().isCreated())
+				.andReturn();
+		assertThat(names(created), contains(first, second));
+		assertThat(imageRepository.findByName(first), is(notNullValue()));
+		assertThat(imageRepository.findByName(second), is(notNullValue()));
+
+		MvcResult deleted = mvc.perform(delete("/images")
+					.param("name", first, second, name())
+					.with(GREG).with(csrf()))
+				.andExpect(status().isOk())
+				.andReturn();
+		assertThat(names(deleted), containsInAnyOrder(first, second));
+		assertThat(imageRepository.findByName(first), is(nullValue()));
+		assertThat(imageRepository.findByName(second), is(nullValue()));
+	}
+
+	@Test
+	public void batchWithATakenNameStoresNothing() throws Exception {
+
+		String fresh = name();
+
+		mvc.perform(fileUpload("/images/batch")
+					.file(file(fresh))
+					.file(file("test"))
+					.with(GREG).with(csrf()))
+				.andExpect(status().isConflict());
+
+		assertThat(imageRepository.findByName(fresh), is(nullValue()));
+	}
+
+	/**
+	 * PUT the body as greg and wait for the upload, which runs on the I/O pool.
+	 */
+	private ResultActions upload(MockHttpServletRequestBuilder request) throws Exception {
+
+		MvcResult result = mvc.perform(request.with(GREG).with(csrf())).andReturn();
+		return mvc.perform(asyncDispatch(result));
+	}
+
+	@SuppressWarnings("unchecked")
+	private CursorPage<ImageSummary> page(String cursor) throws Exception {
+
+		MockHttpServletRequestBuilder request = get("/").param("size", "2");
+		if (cursor != null) {
+			request.param("cursor", cursor);
+		}
+		return (CursorPage<ImageSummary>) mvc.perform(request)
+				.andExpect(status().isOk())
+				.andReturn()
+				.getModelAndView().getModel().get("page");
+	}
+
+	private static List<Long> ids(CursorPage<ImageSummary> page) {
+		return page.getContent().stream().map(ImageSummary::getId).collect(Collectors.toList());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> names(MvcResult result) throws Exception {
+		return new ObjectMapper().readValue(result.getResponse().getContentAsString(), List.class);
+	}
+
+	private static MockMultipartFile file(String name) {
+		return new MockMultipartFile("files", name, "image/jpeg", UUID.randomUUID().toString().getBytes());
+	}
+
+	private static String name() {
+		return UUID.randomUUID() + ".jpg";
+	}
+
+}
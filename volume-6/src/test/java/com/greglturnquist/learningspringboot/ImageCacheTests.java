@@ -0,0 +1,71 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+public class ImageCacheTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Room for four 1KB images
+	private final ImageCache cache = new ImageCache(4096, 4096, 65536, 1024);
+
+	@Test
+	public void imageIsAdmittedOnItsSecondMiss() throws IOException {
+
+		Resource blob = blob("hot", 1024);
+
+		assertThat(cache.get("hot", blob), is(sameInstance(blob)));
+		assertThat(cache.get("hot", blob), is(instanceOf(ImageCache.CachedImage.class)));
+		assertThat(cache.get("hot", blob), is(instanceOf(ImageCache.CachedImage.class)));
+	}
+
+	@Test
+	public void scanOfImagesReadOnceDoesNotEvictTheHotSet() throws IOException {
+
+		Resource hot = blob("hot", 1024);
+		cache.get("hot", hot);
+		Resource cached = cache.get("hot", hot);
+
+		for (int i = 0; i < 100; i++) {
+			String digest = "cold-" + i;
+			assertThat(cache.get(digest, blob(digest, 1024)), is(not(instanceOf(ImageCache.CachedImage.class))));
+		}
+
+		assertThat(cache.get("hot", hot), is(sameInstance(cached)));
+	}
+
+	@Test
+	public void largeImagesAreMemoryMappedAndServedFromTheCache() throws IOException {
+
+		ImageCache roomy = new ImageCache(1 << 20, 1 << 20, 65536, 1024);
+		Resource blob = blob("large", 100 * 1024);
+		roomy.get("large", blob);
+
+		Resource cached = roomy.get("large", blob);
+
+		assertThat(cached, is(instanceOf(ImageCache.CachedImage.class)));
+		assertThat(cached.contentLength(), is(100 * 1024L));
+	}
+
+	private Resource blob(String name, int size) throws IOException {
+		File file = folder.newFile(name);
+		Files.write(file.toPath(), new byte[size]);
+		return new FileSystemResource(file);
+	}
+
+}
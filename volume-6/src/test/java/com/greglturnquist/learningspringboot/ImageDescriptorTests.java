@@ -0,0 +1,27 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ImageDescriptorTests {
+
+	@Test
+	public void urlsAreRootedAtTheContextPath() {
+
+		ImageDescriptor descriptor = new ImageDescriptor(new Image("cat.jpg", "digest", null), "/gallery");
+
+		assertThat(descriptor.getImageUrl(), is("/gallery/images/cat.jpg/raw"));
+		assertThat(descriptor.getThumbnailUrl(), is("/gallery/images/cat.jpg/thumb"));
+	}
+
+	@Test
+	public void urlsAreEncoded() {
+
+		ImageDescriptor descriptor = new ImageDescriptor(new Image("my cat.jpg", "digest", null), "");
+
+		assertThat(descriptor.getImageUrl(), is("/images/my%20cat.jpg/raw"));
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+public class ImageEventBroadcasterTests {
+
+	private final List<Message<?>> sent = new CopyOnWriteArrayList<>();
+
+	private final AtomicBoolean holding = new AtomicBoolean();
+
+	private volatile CountDownLatch sending = new CountDownLatch(0);
+
+	private volatile CountDownLatch proceed = new CountDownLatch(0);
+
+	private volatile Long minId;
+
+	private volatile Long maxId;
+
+	private ImageEventBroadcaster broadcaster;
+
+	@Before
+	public void setUp() {
+		MessageChannel channel = new MessageChannel() {
+
+			@Override
+			public boolean send(Message<?> message) {
+				return send(message, INDEFINITE_TIMEOUT);
+			}
+
+			@Override
+			public boolean send(Message<?> message, long timeout) {
+				// Hold up only the first frame, so anything that doesn't wait for it gets sent ahead of it
+				if (holding.compareAndSet(false, true)) {
+					sending.countDown();
+					try {
+						proceed.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				sent.add(message);
+				return true;
+			}
+		};
+		// A window far longer than any test, so only explicit and max-batch flushes send anything
+		ImageRepository imageRepository = (ImageRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {ImageRepository.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "findMinId":
+							return minId;
+						case "findMaxId":
+							return maxId;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		broadcaster = new ImageEventBroadcaster(new SimpMessagingTemplate(channel), imageRepository, 60000, 5);
+	}
+
+	@After
+	public void tearDown() {
+		proceed.countDown();
+		broadcaster.destroy();
+	}
+
+	@Test
+	public void eventsInOneWindowAreMergedIntoOneFramePerTopic() {
+
+		broadcaster.added(image(1L));
+		broadcaster.added(image(2L));
+		broadcaster.deleted(image(3L));
+		broadcaster.flush();
+
+		assertThat(destinations(), contains(ImageEventBroadcaster.DELETE_IMAGE, ImageEventBroadcaster.NEW_IMAGE));
+		assertThat(SimpMessageHeaderAccessor.wrap(sent.get(1)).getFirstNativeHeader(ImageEventBroadcaster.MERGED_HEADER),
+				is("2"));
+	}
+
+	@Test
+	public void deleteFrameSaysWhichIdsAreLeftAtEitherEnd() {
+
+		minId = 2L;
+		maxId = 9L;
+		broadcaster.deleted(image(1L));
+		broadcaster.flush();
+
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(sent.get(0));
+		assertThat(headers.getFirstNativeHeader(ImageEventBroadcaster.FIRST_ID_HEADER), is("2"));
+		assertThat(headers.getFirstNativeHeader(ImageEventBroadcaster.LAST_ID_HEADER), is("9"));
+	}
+
+	@Test
+	public void deleteFrameLeavesTheIdsOutOnceTheGalleryIsEmpty() {
+
+		broadcaster.deleted(image(1L));
+		broadcaster.flush();
+
+		SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(sent.get(0));
+		assertThat(headers.getFirstNativeHeader(ImageEventBroadcaster.FIRST_ID_HEADER), is(nullValue()));
+		assertThat(headers.getFirstNativeHeader(ImageEventBroadcaster.LAST_ID_HEADER), is(nullValue()));
+	}
+
+	@Test
+	public void imageAddedAndDeletedInOneWindowIsNeverAnnounced() {
+
+		broadcaster.added(image(1L));
+		broadcaster.deleted(image(1L));
+		broadcaster.flush();
+
+		assertThat(sent, is(empty()));
+	}
+
+	@Test
+	public void fullBatchIsSentWithoutWaitingForTheWindow() {
+
+		broadcaster.added(Arrays.asList(image(1L), image(2L), image(3L), image(4L), image(5L)));
+
+		assertThat(destinations(), contains(ImageEventBroadcaster.NEW_IMAGE));
+	}
+
+	@Test
+	public void laterWindowCannotOvertakeOneStillBeingSent() throws Exception {
+
+		sending = new CountDownLatch(1);
+		proceed = new CountDownLatch(1);
+
+		broadcaster.added(image(1L));
+		Thread first = new Thread(broadcaster::flush);
+		first.start();
+		assertThat(sending.await(10, TimeUnit.SECONDS), is(true));
+
+		// The add is on its way out; a delete of the same image now lands in the next window
+		broadcaster.deleted(image(1L));
+		Thread second = new Thread(broadcaster::flush);
+		second.start();
+		while (second.getState() == Thread.State.NEW || second.getState() == Thread.State.RUNNABLE) {
+			Thread.sleep(10);
+		}
+
+		proceed.countDown();
+		first.join();
+		second.join();
+
+		assertThat(destinations(), contains(ImageEventBroadcaster.NEW_IMAGE, ImageEventBroadcaster.DELETE_IMAGE));
+	}
+
+	private List<String> destinations() {
+		return sent.stream()
+				.map(message -> SimpMessageHeaderAccessor.getDestination(message.getHeaders()))
+				.collect(Collectors.toList());
+	}
+
+	private static ImageDescriptor image(Long id) {
+		Image image = new Image("image-" + id + ".jpg", "digest-" + id, null);
+		image.setId(id);
+		return new ImageDescriptor(image, "");
+	}
+
+}
@@ -0,0 +1,177 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"springagram.reconcile.enabled=false",
+	"springagram.storage.root=build/rebuilder-tests"
+})
+public class ImageIndexRebuilderTests {
+
+	@Autowired
+	private ImageManifest manifest;
+
+	@Autowired
+	private ImageStorage storage;
+
+	@Autowired
+	private ImageRepository imageRepository;
+
+	@Autowired
+	private ImageBlobRepository blobRepository;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private String missing;
+
+	@After
+	public void tearDown() throws IOException {
+		if (missing != null) {
+			manifest.forget(missing);
+		}
+	}
+
+	@Test
+	public void healthIsOutOfServiceUntilTheIndexIsRebuilt() {
+
+		ImageIndexRebuilder rebuilder = rebuilder(imageRepository);
+
+		assertThat(rebuilder.health().getStatus(), is(Status.OUT_OF_SERVICE));
+		assertThat(rebuilder.isRebuilt(), is(false));
+
+		rebuilder.rebuild();
+
+		assertThat(rebuilder.health().getStatus(), is(Status.UP));
+		assertThat(rebuilder.isRebuilt(), is(true));
+	}
+
+	@Test
+	public void imagesOnlyTheManifestHasAreIndexed() throws Exception {
+
+		String digest = lost("lost.jpg");
+		ImageIndexRebuilder rebuilder = rebuilder(imageRepository);
+
+		rebuilder.rebuild();
+
+		Health health = rebuilder.health();
+		assertThat(health.getDetails().get("indexed"), is(1L));
+		assertThat(imageRepository.findByName("lost.jpg").getDigest(), is(digest));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+	}
+
+	@Test
+	public void entryWhoseBlobIsMissingIsCountedAndSkipped() throws Exception {
+
+		missing = "missing.jpg";
+		manifest.record(new Image(missing, digestOf(UUID.randomUUID().toString().getBytes()),
+				userRepository.findByUsername("greg")));
+		ImageIndexRebuilder rebuilder = rebuilder(imageRepository);
+
+		rebuilder.rebuild();
+
+		Health health = rebuilder.health();
+		assertThat(health.getStatus(), is(Status.UP));
+		assertThat(health.getDetails().get("missingBlobs"), is(1L));
+		assertThat(imageRepository.findByName(missing), is(nullValue()));
+	}
+
+	@Test
+	public void imageCreatedMidRebuildIsSkippedNotFailingTheRebuild() throws Exception {
+
+		lost("alongside.jpg");
+		String clashing = imageRepository.findByName("test").getDigest();
+		long references = blobRepository.findOne(clashing).getReferenceCount();
+		// "test" isn't found when the rebuild looks, as if uploaded right after; its insert then clashes
+		ImageIndexRebuilder rebuilder = rebuilder(hiding("test"));
+
+		rebuilder.rebuild();
+
+		Health health = rebuilder.health();
+		assertThat(health.getStatus(), is(Status.UP));
+		assertThat(health.getDetails().get("conflicts"), is(1L));
+		assertThat(imageRepository.findByName("alongside.jpg"), is(notNullValue()));
+		assertThat(blobRepository.findOne(clashing).getReferenceCount(), is(references));
+	}
+
+	private ImageIndexRebuilder rebuilder(ImageRepository repository) {
+		return new ImageIndexRebuilder(manifest, storage, repository, userRepository, transactionManager, 2, 500);
+	}
+
+	/**
+	 * The real repository, except {@code findByNameIn} never finds {@code name}.
+	 */
+	private ImageRepository hiding(String name) {
+		return (ImageRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {ImageRepository.class}, (proxy, method, args) -> {
+					Object result;
+					try {
+						result = method.invoke(imageRepository, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if (method.getName().equals("findByNameIn")) {
+						return ((List<?>) result).stream()
+								.filter(image -> !((Image) image).getName().equals(name))
+								.collect(Collectors.toList());
+					}
+					return result;
+				});
+	}
+
+	/**
+	 * A blob and manifest entry for an image the database doesn't have, as after restarting over old storage.
+	 */
+	private String lost(String name) throws IOException, NoSuchAlgorithmException {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+		String digest = digestOf(content);
+		Path path = storage.load(digest).getFile().toPath();
+		Files.createDirectories(path.getParent());
+		Files.write(path, content);
+		manifest.record(new Image(name, digest, userRepository.findByUsername("greg")));
+		return digest;
+	}
+
+	private static String digestOf(byte[] content) throws NoSuchAlgorithmException {
+
+		StringBuilder digest = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+			digest.append(String.format("%02x", b));
+		}
+		return digest.toString();
+	}
+
+}
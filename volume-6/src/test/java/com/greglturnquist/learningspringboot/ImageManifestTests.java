@@ -0,0 +1,70 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class ImageManifestTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ImageManifest manifest;
+
+	@Before
+	public void setUp() {
+		manifest = new ImageManifest(folder.getRoot().getPath());
+	}
+
+	@Test
+	public void rolledBackRecordIsDiscarded() throws Exception {
+
+		List<TransactionSynchronization> transaction = inTransaction(new Image("cat.jpg", "abcd", null));
+
+		rollBack(transaction);
+
+		assertThat(manifest.readAll(new SyncTaskExecutor()), is(empty()));
+	}
+
+	@Test
+	public void rolledBackRecordLeavesAnIdenticalLaterOneAlone() throws Exception {
+
+		List<TransactionSynchronization> loser = inTransaction(new Image("cat.jpg", "abcd", null));
+		// The same name and content, committed by whoever won
+		manifest.record(new Image("cat.jpg", "abcd", null));
+
+		rollBack(loser);
+
+		assertThat(manifest.readAll(new SyncTaskExecutor()).size(), is(1));
+	}
+
+	/**
+	 * Record the image as a transaction would, handing back what has to happen once it completes.
+	 */
+	private List<TransactionSynchronization> inTransaction(Image image) throws Exception {
+
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			manifest.record(image);
+			return TransactionSynchronizationManager.getSynchronizations();
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	private static void rollBack(List<TransactionSynchronization> transaction) {
+		transaction.forEach(synchronization ->
+				synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+	}
+
+}
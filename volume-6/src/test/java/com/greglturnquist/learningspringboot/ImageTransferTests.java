@@ -0,0 +1,112 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"springagram.io.threads=1",
+	"springagram.io.queue-capacity=0", // so a single stalled transfer fills the pool
+	"springagram.reconcile.enabled=false"
+})
+public class ImageTransferTests {
+
+	@Autowired
+	private WebApplicationContext context;
+
+	@Autowired
+	private Filter springSecurityFilterChain;
+
+	@Autowired
+	private ImageIoExecutor imageIoExecutor;
+
+	private MockMvc mvc;
+
+	private final CountDownLatch stalled = new CountDownLatch(1);
+
+	@Before
+	public void setUp() {
+		mvc = MockMvcBuilders.webAppContextSetup(context).addFilters(springSecurityFilterChain).build();
+	}
+
+	@After
+	public void tearDown() {
+		stalled.countDown();
+	}
+
+	@Test
+	public void rawImageIsWrittenOnTheIoPool() throws Exception {
+
+		MvcResult result = mvc.perform(get("/images/test/raw"))
+				.andExpect(request().asyncStarted())
+				.andExpect(header().string("Accept-Ranges", "bytes"))
+				.andReturn();
+
+		mvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+
+		// Streamed straight into the response the handler was given
+		assertThat(result.getResponse().getContentAsString(), is("Test file"));
+	}
+
+	@Test
+	public void transferIsRefusedOnceWhenThePoolIsFull() throws Exception {
+
+		imageIoExecutor.submit(() -> stalled.await(10, TimeUnit.SECONDS));
+
+		MvcResult result = mvc.perform(get("/images/test/raw"))
+				.andExpect(request().asyncStarted())
+				.andExpect(content().string(""))
+				.andReturn();
+
+		mvc.perform(rejectionDispatch(result))
+				.andExpect(status().isServiceUnavailable())
+				.andExpect(header().string("Retry-After", "1"))
+				.andExpect(content().string("Too many transfers in progress, try again shortly"));
+	}
+
+	/**
+	 * Same as {@link MockMvcRequestBuilders#asyncDispatch(MvcResult)}, minus waiting for the async result:
+	 * a rejected task never runs MockMvc's interceptor that records it, although the rejection has been
+	 * dispatched all the same.
+	 */
+	private static RequestBuilder rejectionDispatch(MvcResult result) {
+		return servletContext -> {
+			MockHttpServletRequest request = result.getRequest();
+			request.setDispatcherType(DispatcherType.ASYNC);
+			request.setAsyncStarted(false);
+			return request;
+		};
+	}
+
+}
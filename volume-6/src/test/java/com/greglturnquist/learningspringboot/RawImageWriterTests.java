@@ -0,0 +1,82 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+public class RawImageWriterTests {
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final RawImageWriter writer = new RawImageWriter();
+
+	private MockHttpServletRequest request;
+
+	private MockHttpServletResponse response;
+
+	private byte[] content;
+
+	private Resource blob;
+
+	@Before
+	public void setUp() throws IOException {
+
+		request = new MockHttpServletRequest("GET", "/images/large.jpg/raw");
+		request.setAttribute(SENDFILE_SUPPORT, true);
+		response = new MockHttpServletResponse();
+
+		// Past the sendfile threshold
+		content = new byte[100 * 1024];
+		new Random(42).nextBytes(content);
+		File file = folder.newFile("large.jpg");
+		Files.write(file.toPath(), content);
+		blob = new FileSystemResource(file);
+	}
+
+	@Test
+	public void largeUncachedImageIsSentWithSendfile() throws IOException {
+
+		StreamingResponseBody body = writer.write(blob, "large.jpg", request, response);
+
+		assertThat(body, is(nullValue()));
+		assertThat(request.getAttribute(SENDFILE_FILENAME), is(blob.getFile().getCanonicalPath()));
+	}
+
+	@Test
+	public void largeCachedImageIsWrittenFromMemory() throws IOException {
+
+		ImageCache cache = new ImageCache(1 << 20, 1 << 20, 65536, 1024);
+		cache.get("large", blob);
+		Resource cached = cache.get("large", blob);
+
+		StreamingResponseBody body = writer.write(cached, "large.jpg", request, response);
+
+		assertThat(body, is(notNullValue()));
+		assertThat(request.getAttribute(SENDFILE_FILENAME), is(nullValue()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.writeTo(out);
+		assertThat(out.toByteArray(), is(content));
+	}
+
+}
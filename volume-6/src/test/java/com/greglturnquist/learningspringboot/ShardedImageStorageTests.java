@@ -0,0 +1,209 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"springagram.reconcile.enabled=false",
+	// No more connections than concurrent uploads, and no waiting for one that won't come
+	"spring.datasource.max-active=" + ShardedImageStorageTests.THREADS,
+	"spring.datasource.max-wait=2000"
+})
+public class ShardedImageStorageTests {
+
+	static final int THREADS = 8;
+
+	@Autowired
+	private ShardedImageStorage storage;
+
+	@Autowired
+	private ImageBlobRepository blobRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private ExecutorService executor;
+
+	private TransactionTemplate transactionTemplate;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(THREADS);
+		transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentFirstUploadsShareOneBlob() throws Exception {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+		CyclicBarrier start = new CyclicBarrier(THREADS);
+
+		List<String> digests = runConcurrently(() -> {
+			start.await();
+			return store(content);
+		});
+
+		String digest = digests.get(0);
+		assertThat(digests.stream().allMatch(digest::equals), is(true));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is((long) THREADS));
+		assertThat(storage.load(digest).exists(), is(true));
+	}
+
+	@Test
+	public void firstUploadsNeedNoConnectionBesidesTheirOwn() throws Exception {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+		CyclicBarrier start = new CyclicBarrier(THREADS);
+
+		List<String> digests = runConcurrently(() -> transactionTemplate.execute(status -> {
+			blobRepository.count(); // holds on to a connection until the transaction ends
+			try {
+				start.await(10, TimeUnit.SECONDS);
+				// Every pooled connection is taken now
+				return storage.store(new ByteArrayInputStream(content));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}));
+
+		String digest = digests.get(0);
+		assertThat(digests.stream().allMatch(digest::equals), is(true));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is((long) THREADS));
+	}
+
+	@Test
+	public void rolledBackFirstUploadLeavesNeitherRowNorFile() throws Exception {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+
+		String digest = transactionTemplate.execute(status -> {
+			status.setRollbackOnly();
+			try {
+				return storage.store(new ByteArrayInputStream(content));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+
+		assertThat(blobRepository.exists(digest), is(false));
+		assertThat(storage.load(digest).exists(), is(false));
+	}
+
+	@Test
+	public void concurrentUploadsAndDeletesKeepCountAndFile() throws Exception {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+		String digest = storage.store(new ByteArrayInputStream(content));
+
+		runConcurrently(() -> {
+			for (int i = 0; i < 25; i++) {
+				store(content);
+				release(digest);
+			}
+			return digest;
+		});
+
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+		assertThat(storage.load(digest).exists(), is(true));
+
+		assertThat(storage.release(digest), is(true));
+		assertThat(blobRepository.exists(digest), is(false));
+		assertThat(storage.load(digest).exists(), is(false));
+	}
+
+	@Test
+	public void lastReleaseRacingAnUploadNeverLosesTheFile() throws Exception {
+
+		byte[] content = UUID.randomUUID().toString().getBytes();
+
+		for (int i = 0; i < 25; i++) {
+			String digest = storage.store(new ByteArrayInputStream(content));
+			CyclicBarrier start = new CyclicBarrier(2);
+
+			Future<Boolean> release = executor.submit(() -> {
+				start.await();
+				return release(digest);
+			});
+			Future<String> upload = executor.submit(() -> {
+				start.await();
+				return store(content);
+			});
+			release.get();
+			upload.get();
+
+			assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+			assertThat(storage.load(digest).exists(), is(true));
+			storage.release(digest);
+		}
+	}
+
+	/**
+	 * Store the way {@link ImageService} does, in a transaction that commits after the storage call returns.
+	 */
+	private String store(byte[] content) {
+		return transactionTemplate.execute(status -> {
+			try {
+				return storage.store(new ByteArrayInputStream(content));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private boolean release(String digest) {
+		return transactionTemplate.execute(status -> {
+			try {
+				return storage.release(digest);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private <T> List<T> runConcurrently(Callable<T> task) throws Exception {
+
+		List<Future<T>> futures = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(task));
+		}
+		List<T> results = new ArrayList<>();
+		for (Future<T> future : futures) {
+			results.add(future.get());
+		}
+		return results;
+	}
+
+}
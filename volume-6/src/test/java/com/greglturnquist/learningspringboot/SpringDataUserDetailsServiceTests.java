@@ -0,0 +1,61 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = "springagram.reconcile.enabled=false")
+public class SpringDataUserDetailsServiceTests {
+
+	@Autowired
+	private SpringDataUserDetailsService userDetailsService;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private CacheManager cacheManager;
+
+	private Cache cache;
+
+	@Before
+	public void setUp() {
+		cache = cacheManager.getCache(SpringDataUserDetailsService.CACHE);
+		userDetailsService.loadUserByUsername("greg");
+		assertThat(cache.get("greg"), is(notNullValue()));
+	}
+
+	@Test
+	public void savingAUserDropsTheCachedDetails() {
+
+		userRepository.save(userRepository.findByUsername("greg"));
+
+		assertThat(cache.get("greg"), is(nullValue()));
+	}
+
+	@Test
+	public void savingSeveralUsersDropsTheCachedDetails() {
+
+		userRepository.save(Collections.singleton(userRepository.findByUsername("greg")));
+
+		assertThat(cache.get("greg"), is(nullValue()));
+	}
+
+}
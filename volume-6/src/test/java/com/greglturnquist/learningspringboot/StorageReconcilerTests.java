@@ -0,0 +1,257 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"springagram.reconcile.enabled=false", // each test runs its own, by hand
+	"springagram.storage.root=build/reconciler-tests"
+})
+public class StorageReconcilerTests {
+
+	@Autowired
+	private ShardedImageStorage storage;
+
+	@Autowired
+	private ImageManifest manifest;
+
+	@Autowired
+	private ImageRepository imageRepository;
+
+	@Autowired
+	private ImageBlobRepository blobRepository;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private TransactionTemplate transactionTemplate;
+
+	private StorageReconciler reconciler;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		executor = Executors.newSingleThreadExecutor();
+
+		reconciler = new StorageReconciler(storage, manifest, imageRepository, blobRepository, Optional.empty(),
+				60000, 2, 500, 300000);
+		// Settle whatever earlier tests left behind, so each test starts with nothing suspect
+		reconciler.reconcile();
+		reconciler.reconcile();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		reconciler.destroy();
+	}
+
+	@Test
+	public void orphanIsOnlyQuarantinedOnceTheNextRunConfirmsIt() throws Exception {
+
+		String digest = orphan(content());
+
+		reconciler.reconcile();
+
+		assertThat(Files.exists(pathOf(digest)), is(true));
+		assertThat(metric("reconcile.suspects"), is(1L));
+
+		reconciler.reconcile();
+
+		assertThat(Files.exists(pathOf(digest)), is(false));
+		assertThat(Files.exists(storage.getQuarantine().resolve(storage.getRoot().relativize(pathOf(digest)))), is(true));
+		assertThat(metric("reconcile.blobs.quarantined"), is(1L));
+		assertThat(metric("reconcile.suspects"), is(0L));
+	}
+
+	@Test
+	public void suspectUploadedBeforeTheNextRunIsLeftAlone() throws Exception {
+
+		byte[] content = content();
+		String digest = orphan(content);
+
+		reconciler.reconcile();
+		upload("confirm.jpg", content);
+		reconciler.reconcile();
+
+		assertThat(Files.exists(pathOf(digest)), is(true));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+		assertThat(metric("reconcile.blobs.quarantined"), is(0L));
+		assertThat(metric("reconcile.suspects"), is(0L));
+	}
+
+	@Test
+	public void wrongReferenceCountIsRepaired() throws Exception {
+
+		String digest = upload("miscounted.jpg", content());
+		ImageBlob blob = blobRepository.findOne(digest);
+		blob.setReferenceCount(3);
+		blobRepository.save(blob);
+
+		reconciler.reconcile();
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(3L));
+		reconciler.reconcile();
+
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+		assertThat(metric("reconcile.blobs.repaired"), is(1L));
+	}
+
+	@Test
+	public void missingBlobIsReportedAndItsImageKept() throws Exception {
+
+		byte[] content = content();
+		String digest = upload("missing.jpg", content);
+		Files.delete(pathOf(digest));
+
+		reconciler.reconcile();
+		reconciler.reconcile();
+
+		assertThat(metric("reconcile.blobs.missing"), is(1L));
+		assertThat(imageRepository.countByDigest(digest), is(1L));
+		assertThat(blobRepository.exists(digest), is(true));
+
+		// Put it back, so it isn't still missing in the next test
+		Files.write(pathOf(digest), content);
+	}
+
+	@Test
+	public void quarantineWaitsForAnUploadHoldingTheBlob() throws Exception {
+
+		byte[] content = content();
+		String digest = orphan(content);
+		CountDownLatch stored = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+
+		// An upload of the orphan's content, stopped between storing the blob and saving its image
+		Future<?> upload = executor.submit(() -> transactionTemplate.execute(status -> {
+			String uploaded = store(content);
+			stored.countDown();
+			try {
+				proceed.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return imageRepository.save(new Image("racing.jpg", uploaded, userRepository.findByUsername("greg")));
+		}));
+		assertThat(stored.await(10, TimeUnit.SECONDS), is(true));
+
+		Thread release = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			proceed.countDown();
+		});
+		release.start();
+
+		// Counting images without the row lock would find none and quarantine the blob out from under the upload
+		assertThat(storage.reconcile(digest, imageRepository::countByDigest),
+				is(ShardedImageStorage.Reconciled.CONSISTENT));
+
+		upload.get();
+		release.join();
+		assertThat(Files.exists(pathOf(digest)), is(true));
+		assertThat(blobRepository.findOne(digest).getReferenceCount(), is(1L));
+	}
+
+	@Test
+	public void runAfterShutdownLeavesEverythingAsItIs() throws Exception {
+
+		String digest = orphan(content());
+		reconciler.reconcile();
+
+		reconciler.destroy();
+		reconciler.reconcile();
+
+		assertThat(Files.exists(pathOf(digest)), is(true));
+		assertThat(metric("reconcile.blobs.quarantined"), is(0L));
+	}
+
+	/**
+	 * Upload the way {@link ImageService} does, blob and image in one transaction.
+	 */
+	private String upload(String name, byte[] content) {
+		return transactionTemplate.execute(status -> {
+			String digest = store(content);
+			imageRepository.save(new Image(name, digest, userRepository.findByUsername("greg")));
+			return digest;
+		});
+	}
+
+	private String store(byte[] content) {
+		try {
+			return storage.store(new ByteArrayInputStream(content));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * A blob file with no row and no image, as a crash between writing it and committing would leave.
+	 */
+	private String orphan(byte[] content) throws IOException, NoSuchAlgorithmException {
+
+		StringBuilder digest = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+			digest.append(String.format("%02x", b));
+		}
+		Path path = pathOf(digest.toString());
+		Files.createDirectories(path.getParent());
+		Files.write(path, content);
+		return digest.toString();
+	}
+
+	private Path pathOf(String digest) throws IOException {
+		return storage.load(digest).getFile().toPath();
+	}
+
+	private static byte[] content() {
+		return UUID.randomUUID().toString().getBytes();
+	}
+
+	private long metric(String name) {
+		return reconciler.metrics().stream()
+				.filter(metric -> metric.getName().equals(name))
+				.findFirst()
+				.get()
+				.getValue()
+				.longValue();
+	}
+
+}
@@ -0,0 +1,249 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+
+public class ThumbnailServiceTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final StubStorage storage = new StubStorage();
+
+	private ThumbnailService thumbnails;
+
+	@Before
+	public void setUp() {
+		// One worker, and room for one more in the queue
+		thumbnails = new ThumbnailService(storage, folder.getRoot().getPath(), 50, 1 << 24, 1, 1);
+	}
+
+	@After
+	public void tearDown() {
+		storage.proceed.countDown();
+		thumbnails.destroy();
+	}
+
+	@Test
+	public void thumbnailIsScaledAndMovedIntoPlaceWhole() throws Exception {
+
+		storage.put("abcd01", png(200, 100));
+
+		thumbnails.request("abcd01");
+		await(() -> metric("thumbnails.completed") == 1);
+
+		Resource thumbnail = thumbnails.load("abcd01");
+		assertThat(thumbnail.exists(), is(true));
+		BufferedImage image = ImageIO.read(thumbnail.getFile());
+		assertThat(image.getWidth(), is(50));
+		assertThat(image.getHeight(), is(25));
+		try (Stream<Path> files = Files.list(thumbnail.getFile().toPath().getParent())) {
+			assertThat(files.filter(file -> file.toString().endsWith(".tmp")).collect(Collectors.toList()), is(empty()));
+		}
+	}
+
+	@Test
+	public void thumbnailDoesNotExistUntilItHasBeenRendered() throws Exception {
+
+		storage.put("abcd01", png(200, 100));
+		storage.holding = true;
+
+		thumbnails.request("abcd01");
+		assertThat(storage.loading.await(10, TimeUnit.SECONDS), is(true));
+
+		assertThat(thumbnails.load("abcd01").exists(), is(false));
+
+		storage.proceed.countDown();
+		await(() -> thumbnails.load("abcd01").exists());
+	}
+
+	@Test
+	public void imageDeclaringTooManyPixelsIsSubsampled() throws Exception {
+
+		// 40,000 pixels against a limit of 10,000 means every other pixel both ways
+		storage.put("abcd01", png(200, 200));
+		ThumbnailService limited = new ThumbnailService(storage, folder.getRoot().getPath(), 150, 10000, 1, 1);
+		try {
+			limited.request("abcd01");
+			await(() -> metric(limited, "thumbnails.completed") == 1);
+
+			assertThat(ImageIO.read(limited.load("abcd01").getFile()).getWidth(), is(100));
+			assertThat(metric(limited, "thumbnails.subsampled"), is(1L));
+		} finally {
+			limited.destroy();
+		}
+	}
+
+	@Test
+	public void requestsBeyondTheQueueAreRejected() throws Exception {
+
+		storage.put("abcd01", png(10, 10));
+		storage.put("abcd02", png(10, 10));
+		storage.put("abcd03", png(10, 10));
+		storage.holding = true;
+
+		thumbnails.request("abcd01");
+		assertThat(storage.loading.await(10, TimeUnit.SECONDS), is(true));
+		thumbnails.request("abcd02"); // queued
+		thumbnails.request("abcd03"); // no room
+
+		assertThat(metric("thumbnails.rejected"), is(1L));
+		assertThat(metric("thumbnails.queue.depth"), is(1L));
+		assertThat(metric("thumbnails.active"), is(1L));
+
+		// A rejected thumbnail isn't pending anymore, so asking again once there's room queues it
+		storage.proceed.countDown();
+		await(() -> metric("thumbnails.completed") == 2);
+		thumbnails.request("abcd03");
+		await(() -> metric("thumbnails.completed") == 3);
+	}
+
+	@Test
+	public void contentImageIoCannotReadIsSkippedForGood() throws Exception {
+
+		storage.put("abcd01", "not an image".getBytes());
+
+		thumbnails.request("abcd01");
+		await(() -> metric("thumbnails.skipped") == 1);
+		thumbnails.request("abcd01");
+
+		assertThat(storage.loads.get("abcd01"), is(1));
+		assertThat(thumbnails.load("abcd01").exists(), is(false));
+		assertThat(metric("thumbnails.failed"), is(0L));
+	}
+
+	@Test
+	public void metricsArePublished() throws Exception {
+
+		storage.put("abcd01", png(10, 10));
+		thumbnails.request("abcd01");
+		await(() -> metric("thumbnails.completed") == 1);
+
+		assertThat(metrics(thumbnails).keySet(), is(new HashSet<>(Arrays.asList(
+				"thumbnails.queue.depth", "thumbnails.active", "thumbnails.completed", "thumbnails.skipped",
+				"thumbnails.subsampled", "thumbnails.failed", "thumbnails.rejected", "thumbnails.processing.mean",
+				"thumbnails.processing.max"))));
+		assertThat(metric("thumbnails.queue.depth"), is(0L));
+		assertThat(metric("thumbnails.failed"), is(0L));
+		assertThat(metric("thumbnails.rejected"), is(0L));
+	}
+
+	private long metric(String name) {
+		return metric(thumbnails, name);
+	}
+
+	private static long metric(ThumbnailService service, String name) {
+		return metrics(service).get(name).longValue();
+	}
+
+	private static Map<String, Number> metrics(ThumbnailService service) {
+		return service.metrics().stream().collect(Collectors.toMap(Metric::getName, metric -> (Number) metric.getValue()));
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Gave up waiting for the thumbnail pool");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static byte[] png(int width, int height) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", bytes);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Serves blobs from memory, optionally holding up every load until {@link #proceed} is counted down.
+	 */
+	private static class StubStorage implements ImageStorage {
+
+		private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+		private final Map<String, Integer> loads = new ConcurrentHashMap<>();
+
+		private final CountDownLatch loading = new CountDownLatch(1);
+
+		private final CountDownLatch proceed = new CountDownLatch(1);
+
+		private volatile boolean holding;
+
+		void put(String digest, byte[] content) {
+			blobs.put(digest, content);
+		}
+
+		@Override
+		public Resource load(String digest) {
+			loads.merge(digest, 1, Integer::sum);
+			if (holding) {
+				loading.countDown();
+				try {
+					proceed.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return new ByteArrayResource(blobs.get(digest));
+		}
+
+		@Override
+		public String store(InputStream content) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<String> storeAll(List<? extends InputStreamSource> contents) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean release(String digest) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean adopt(String digest, long references) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void deleteAll() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
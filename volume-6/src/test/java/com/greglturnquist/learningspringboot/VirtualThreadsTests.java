@@ -0,0 +1,58 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeThat;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+public class VirtualThreadsTests {
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	@Test
+	public void askingForVirtualThreadsBeforeJava21FailsFast() {
+
+		assumeThat(VirtualThreads.isSupported(), is(false));
+
+		thrown.expect(IllegalStateException.class);
+		thrown.expectMessage("Java 21 or later");
+		VirtualThreads.factory("test-");
+	}
+
+	@Test
+	public void virtualThreadsAreNamedAfterTheirPool() {
+
+		assumeThat(VirtualThreads.isSupported(), is(true));
+
+		ThreadFactory threads = VirtualThreads.factory("test-");
+
+		assertThat(threads.newThread(() -> {}).getName(), startsWith("test-"));
+	}
+
+	@Test
+	public void channelExecutorsGetVirtualThreadsBeforeTheyStart() throws Exception {
+
+		assumeThat(VirtualThreads.isSupported(), is(true));
+
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		VirtualThreadsConfiguration.virtualThreadChannelExecutors()
+			.postProcessBeforeInitialization(executor, "clientOutboundChannelExecutor");
+		executor.initialize();
+		try {
+			assertThat(executor.submit(() -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS),
+				startsWith("clientOutboundChannel-"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+package com.greglturnquist.learningspringboot;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import javax.websocket.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = LearningSpringBootVideoApplication.class)
+@WebAppConfiguration
+@TestPropertySource(properties = {
+	"springagram.reconcile.enabled=false",
+	"springagram.websocket.inbound.threads=3",
+	"springagram.websocket.inbound.queue-capacity=7",
+	"springagram.websocket.outbound.threads=5",
+	"springagram.websocket.outbound.queue-capacity=11",
+	"springagram.websocket.send-time-limit-ms=1234"
+})
+public class WebSocketSessionMonitorTests {
+
+	@Autowired
+	private WebSocketSessionMonitor monitor;
+
+	@Autowired
+	@Qualifier("clientInboundChannelExecutor")
+	private ThreadPoolTaskExecutor inbound;
+
+	@Autowired
+	@Qualifier("clientOutboundChannelExecutor")
+	private ThreadPoolTaskExecutor outbound;
+
+	private WebSocketHandler handler;
+
+	private StubSession session;
+
+	@Before
+	public void setUp() throws Exception {
+		handler = monitor.decorate(new AbstractWebSocketHandler() {});
+		session = new StubSession();
+		handler.afterConnectionEstablished(session);
+	}
+
+	@After
+	public void tearDown() {
+		session.proceed.countDown();
+	}
+
+	@Test
+	public void channelPoolsAreSizedFromTheirProperties() {
+
+		assertThat(inbound.getCorePoolSize(), is(3));
+		assertThat(inbound.getMaxPoolSize(), is(3));
+		assertThat(inbound.getThreadPoolExecutor().getQueue().remainingCapacity(), is(7));
+
+		assertThat(outbound.getCorePoolSize(), is(5));
+		assertThat(outbound.getMaxPoolSize(), is(5));
+		assertThat(outbound.getThreadPoolExecutor().getQueue().remainingCapacity(), is(11));
+	}
+
+	@Test
+	public void tomcatBlockingSendTimeoutIsCutToTheSendTimeLimit() {
+		assertThat(session.userProperties.get(WebSocketSessionMonitor.TOMCAT_BLOCKING_SEND_TIMEOUT), is(1234L));
+	}
+
+	@Test
+	public void sessionOverItsSendBufferLimitIsClosedAndCountedAsEvicted() throws Exception {
+
+		long evicted = metric("websocket.sessions.evicted");
+		long current = metric("websocket.sessions.current");
+		WebSocketSession limited = new ConcurrentWebSocketSessionDecorator(session, 60000, 16);
+
+		// The client stops reading partway through the first message, so everything after it piles up
+		new Thread(() -> send(limited, "first")).start();
+		assertThat(session.sending.await(10, TimeUnit.SECONDS), is(true));
+		try {
+			limited.sendMessage(new TextMessage("more than sixteen bytes"));
+			fail("the send buffer limit wasn't enforced");
+		} catch (SessionLimitExceededException e) {
+			limited.close(e.getStatus()); // as SubProtocolWebSocketHandler does
+		}
+
+		assertThat(session.closeStatus, is(CloseStatus.SESSION_NOT_RELIABLE));
+		assertThat(metric("websocket.sessions.evicted"), is(evicted + 1));
+		assertThat(metric("websocket.sessions.current"), is(current - 1));
+	}
+
+	@Test
+	public void sessionTomcatTimedOutOnIsCountedAsEvicted() throws Exception {
+
+		long evicted = metric("websocket.sessions.evicted");
+
+		handler.handleTransportError(session, new IOException(new TimeoutException()));
+		session.close(CloseStatus.NO_CLOSE_FRAME);
+
+		assertThat(metric("websocket.sessions.evicted"), is(evicted + 1));
+	}
+
+	@Test
+	public void sessionClosedNormallyIsNotEvicted() throws Exception {
+
+		long evicted = metric("websocket.sessions.evicted");
+		long current = metric("websocket.sessions.current");
+
+		session.close(CloseStatus.NORMAL);
+
+		assertThat(metric("websocket.sessions.evicted"), is(evicted));
+		assertThat(metric("websocket.sessions.current"), is(current - 1));
+	}
+
+	private long metric(String name) {
+		Map<String, Number> metrics = monitor.metrics().stream()
+				.collect(Collectors.toMap(Metric::getName, metric -> (Number) metric.getValue()));
+		return metrics.get(name).longValue();
+	}
+
+	private static void send(WebSocketSession session, String payload) {
+		try {
+			session.sendMessage(new TextMessage(payload));
+		} catch (IOException e) {
+			// The test is long over
+		}
+	}
+
+	/**
+	 * A Tomcat-like session whose client stops reading: the first send blocks until {@link #proceed} is
+	 * counted down. Closing it reports back to the decorated handler, as the container would.
+	 */
+	private class StubSession extends StandardWebSocketSession {
+
+		private final Map<String, Object> userProperties = new HashMap<>();
+
+		private final CountDownLatch sending = new CountDownLatch(1);
+
+		private final CountDownLatch proceed = new CountDownLatch(1);
+
+		private volatile CloseStatus closeStatus;
+
+		StubSession() {
+			super(new HttpHeaders(), new HashMap<>(), null, null);
+			initializeNativeSession((Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {Session.class}, (proxy, method, args) -> {
+						switch (method.getName()) {
+							case "getId":
+								return "stub";
+							case "isOpen":
+								return closeStatus == null;
+							case "getUserProperties":
+								return userProperties;
+							default:
+								return null;
+						}
+					}));
+		}
+
+		@Override
+		protected void sendTextMessage(TextMessage message) throws IOException {
+			sending.countDown();
+			try {
+				proceed.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		protected void closeInternal(CloseStatus status) throws IOException {
+			closeStatus = status;
+			try {
+				handler.afterConnectionClosed(this, status);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+}